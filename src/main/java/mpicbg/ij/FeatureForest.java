@@ -0,0 +1,458 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.ij;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Approximate nearest neighbor matching of {@link Feature} descriptors with
+ * a randomized kd-forest (Silpa-Anan and Hartley 2008, Muja and Lowe 2009).
+ * Each tree splits at the mean of a dimension picked at random from the
+ * dimensions with the highest variance.  A query descends all trees and then
+ * continues best-bin-first through a shared priority queue until a maximum
+ * number of descriptors has been checked.  Matches are accepted by the
+ * closest/next closest distance ratio and ambiguous matches are removed
+ * like in {@link FeatureTransform#matchFeatures(List, List, List, double)}.
+ * Queries run in parallel.
+ *
+ * For small feature sets, {@link #matchFeatures(List, List, List, double)}
+ * falls back to a parallel exact search.
+ */
+public class FeatureForest
+{
+	final static public int defaultNumTrees = 4;
+	final static public int defaultMaxChecks = 256;
+
+	/* below this number of target features, exact search is as fast */
+	final static public int minForestSize = 1024;
+
+	final static private int leafSize = 4;
+	final static private int numCandidateDimensions = 5;
+	final static private int varianceSampleSize = 128;
+
+	final static private class Node
+	{
+		/* split dimension, -1 for leaves */
+		final int d;
+		final float split;
+		final Node left;
+		final Node right;
+		/* range of a leaf in the permutation of its tree */
+		final int from;
+		final int to;
+
+		Node( final int d, final float split, final Node left, final Node right )
+		{
+			this.d = d;
+			this.split = split;
+			this.left = left;
+			this.right = right;
+			from = to = 0;
+		}
+
+		Node( final int from, final int to )
+		{
+			d = -1;
+			split = 0;
+			left = right = null;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	final static private class Branch implements Comparable< Branch >
+	{
+		final Node node;
+		final int tree;
+		final double distance;
+
+		Branch( final Node node, final int tree, final double distance )
+		{
+			this.node = node;
+			this.tree = tree;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo( final Branch o )
+		{
+			return Double.compare( distance, o.distance );
+		}
+	}
+
+	/**
+	 * Per thread query state.
+	 */
+	final private class Search
+	{
+		final int[] checked = new int[ descriptors.length ];
+		final PriorityQueue< Branch > queue = new PriorityQueue< Branch >();
+		int stamp = 0;
+		int checks;
+		int best;
+		double bestDistance;
+		double secondDistance;
+
+		void check( final float[] query, final int i )
+		{
+			if ( checked[ i ] == stamp )
+				return;
+			checked[ i ] = stamp;
+			++checks;
+			final double d = squareDistance( query, descriptors[ i ], secondDistance );
+			if ( d < bestDistance )
+			{
+				secondDistance = bestDistance;
+				bestDistance = d;
+				best = i;
+			}
+			else if ( d < secondDistance )
+				secondDistance = d;
+		}
+
+		void descend( final float[] query, Node node, final int tree, final double distance )
+		{
+			while ( node.d >= 0 )
+			{
+				final double diff = query[ node.d ] - node.split;
+				final Node near, far;
+				if ( diff < 0 )
+				{
+					near = node.left;
+					far = node.right;
+				}
+				else
+				{
+					near = node.right;
+					far = node.left;
+				}
+				queue.add( new Branch( far, tree, distance + diff * diff ) );
+				node = near;
+			}
+			final int[] permutation = permutations[ tree ];
+			for ( int k = node.from; k < node.to; ++k )
+				check( query, permutation[ k ] );
+		}
+
+		/**
+		 * Find the approximate closest and next closest descriptor.
+		 */
+		void search( final float[] query )
+		{
+			++stamp;
+			queue.clear();
+			checks = 0;
+			best = -1;
+			bestDistance = Double.MAX_VALUE;
+			secondDistance = Double.MAX_VALUE;
+
+			for ( int t = 0; t < roots.length; ++t )
+				descend( query, roots[ t ], t, 0 );
+
+			while ( checks < maxChecks && !queue.isEmpty() )
+			{
+				final Branch branch = queue.poll();
+				if ( branch.distance >= secondDistance )
+					break;
+				descend( query, branch.node, branch.tree, branch.distance );
+			}
+		}
+	}
+
+	final private float[][] descriptors;
+	final private int[][] permutations;
+	final private Node[] roots;
+	final private int maxChecks;
+
+	/**
+	 * @param features the features to be searched
+	 * @param numTrees
+	 * @param maxChecks maximum number of descriptors compared per query
+	 * @param seed for the random split dimensions
+	 */
+	public FeatureForest( final List< Feature > features, final int numTrees, final int maxChecks, final long seed )
+	{
+		descriptors = new float[ features.size() ][];
+		for ( int i = 0; i < descriptors.length; ++i )
+			descriptors[ i ] = features.get( i ).descriptor;
+		this.maxChecks = maxChecks;
+
+		permutations = new int[ numTrees ][];
+		roots = new Node[ numTrees ];
+		final Random seeds = new Random( seed );
+		final long[] treeSeeds = new long[ numTrees ];
+		for ( int t = 0; t < numTrees; ++t )
+			treeSeeds[ t ] = seeds.nextLong();
+		IntStream.range( 0, numTrees ).parallel().forEach(
+				t -> {
+					final int[] permutation = new int[ descriptors.length ];
+					for ( int i = 0; i < permutation.length; ++i )
+						permutation[ i ] = i;
+					permutations[ t ] = permutation;
+					roots[ t ] = build( permutation, 0, permutation.length, new Random( treeSeeds[ t ] ) );
+				} );
+	}
+
+	public FeatureForest( final List< Feature > features )
+	{
+		this( features, defaultNumTrees, defaultMaxChecks, 0 );
+	}
+
+	/**
+	 * Squared Euclidean distance, returns early when exceeding bound.
+	 */
+	final static private double squareDistance( final float[] a, final float[] b, final double bound )
+	{
+		double d = 0;
+		for ( int i = 0; i < a.length; ++i )
+		{
+			final double x = a[ i ] - b[ i ];
+			d += x * x;
+			if ( d > bound )
+				return d;
+		}
+		return d;
+	}
+
+	private Node build( final int[] permutation, final int from, final int to, final Random rnd )
+	{
+		if ( to - from <= leafSize )
+			return new Node( from, to );
+
+		/* mean and variance of a sample */
+		final int numDimensions = descriptors[ permutation[ from ] ].length;
+		final int n = Math.min( varianceSampleSize, to - from );
+		final double[] mean = new double[ numDimensions ];
+		final double[] variance = new double[ numDimensions ];
+		for ( int k = 0; k < n; ++k )
+		{
+			final float[] x = descriptors[ permutation[ from + k * ( to - from ) / n ] ];
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				mean[ d ] += x[ d ];
+				variance[ d ] += x[ d ] * x[ d ];
+			}
+		}
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			mean[ d ] /= n;
+			variance[ d ] = variance[ d ] / n - mean[ d ] * mean[ d ];
+		}
+
+		/* random one of the highest variance dimensions */
+		final Integer[] dimensions = new Integer[ numDimensions ];
+		for ( int d = 0; d < numDimensions; ++d )
+			dimensions[ d ] = d;
+		Arrays.sort( dimensions, ( a, b ) -> Double.compare( variance[ b ], variance[ a ] ) );
+		final int d = dimensions[ rnd.nextInt( Math.min( numCandidateDimensions, numDimensions ) ) ];
+		final float split = ( float )mean[ d ];
+
+		/* partition */
+		int i = from, j = to - 1;
+		while ( i <= j )
+		{
+			if ( descriptors[ permutation[ i ] ][ d ] < split )
+				++i;
+			else
+			{
+				final int swap = permutation[ i ];
+				permutation[ i ] = permutation[ j ];
+				permutation[ j ] = swap;
+				--j;
+			}
+		}
+
+		/* degenerate split, all samples equal in d */
+		if ( i == from || i == to )
+			return new Node( from, to );
+
+		return new Node( d, split, build( permutation, from, i, rnd ), build( permutation, i, to, rnd ) );
+	}
+
+	/**
+	 * Approximate closest match in this forest for each query, -1 where the
+	 * ratio test fails.
+	 *
+	 * @param queries
+	 * @param rod closest/next closest distance ratio
+	 * @return
+	 */
+	public int[] closest( final List< Feature > queries, final double rod )
+	{
+		final int[] matches = new int[ queries.size() ];
+		final double rod2 = rod * rod;
+		final int numBlocks = Math.max( 1, Math.min( matches.length, 4 * Runtime.getRuntime().availableProcessors() ) );
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				b -> {
+					final Search search = new Search();
+					final int to = ( int )( ( long )( b + 1 ) * matches.length / numBlocks );
+					for ( int i = ( int )( ( long )b * matches.length / numBlocks ); i < to; ++i )
+					{
+						search.search( queries.get( i ).descriptor );
+						matches[ i ] =
+								search.secondDistance < Double.MAX_VALUE && search.bestDistance < rod2 * search.secondDistance ?
+										search.best : -1;
+					}
+				} );
+		return matches;
+	}
+
+	/**
+	 * Exact closest match for each query, -1 where the ratio test fails.
+	 * Queries are processed in parallel.
+	 *
+	 * @param queries
+	 * @param features
+	 * @param rod closest/next closest distance ratio
+	 * @return
+	 */
+	public static int[] closestExact( final List< Feature > queries, final List< Feature > features, final double rod )
+	{
+		final float[][] descriptors = new float[ features.size() ][];
+		for ( int i = 0; i < descriptors.length; ++i )
+			descriptors[ i ] = features.get( i ).descriptor;
+
+		final int[] matches = new int[ queries.size() ];
+		final double rod2 = rod * rod;
+		IntStream.range( 0, matches.length ).parallel().forEach(
+				i -> {
+					final float[] query = queries.get( i ).descriptor;
+					int best = -1;
+					double bestDistance = Double.MAX_VALUE;
+					double secondDistance = Double.MAX_VALUE;
+					for ( int j = 0; j < descriptors.length; ++j )
+					{
+						final double d = squareDistance( query, descriptors[ j ], secondDistance );
+						if ( d < bestDistance )
+						{
+							secondDistance = bestDistance;
+							bestDistance = d;
+							best = j;
+						}
+						else if ( d < secondDistance )
+							secondDistance = d;
+					}
+					matches[ i ] = secondDistance < Double.MAX_VALUE && bestDistance < rod2 * secondDistance ? best : -1;
+				} );
+		return matches;
+	}
+
+	/**
+	 * Add the matches to the list, and remove all matches whose target
+	 * location is matched more than once.
+	 */
+	private static void addMatches(
+			final List< Feature > fs1,
+			final List< Feature > fs2,
+			final int[] closest,
+			final List< PointMatch > matches )
+	{
+		final HashMap< List< Double >, Integer > counts = new HashMap< List< Double >, Integer >();
+		for ( final int j : closest )
+			if ( j >= 0 )
+				counts.merge( Arrays.asList( fs2.get( j ).location[ 0 ], fs2.get( j ).location[ 1 ] ), 1, Integer::sum );
+
+		final ArrayList< PointMatch > unique = new ArrayList< PointMatch >();
+		for ( int i = 0; i < closest.length; ++i )
+		{
+			final int j = closest[ i ];
+			if ( j < 0 )
+				continue;
+			final Feature f1 = fs1.get( i );
+			final Feature f2 = fs2.get( j );
+			if ( counts.get( Arrays.asList( f2.location[ 0 ], f2.location[ 1 ] ) ) == 1 )
+				unique.add(
+						new PointMatch(
+								new Point( new double[]{ f1.location[ 0 ], f1.location[ 1 ] } ),
+								new Point( new double[]{ f2.location[ 0 ], f2.location[ 1 ] } ) ) );
+		}
+		matches.addAll( unique );
+	}
+
+	/**
+	 * Approximate replacement for
+	 * {@link FeatureTransform#matchFeatures(List, List, List, double)}
+	 * through a forest over fs2.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param matches
+	 * @param rod closest/next closest distance ratio
+	 * @param numTrees
+	 * @param maxChecks maximum number of descriptors compared per query
+	 */
+	public static void matchFeatures(
+			final List< Feature > fs1,
+			final List< Feature > fs2,
+			final List< PointMatch > matches,
+			final double rod,
+			final int numTrees,
+			final int maxChecks )
+	{
+		addMatches( fs1, fs2, new FeatureForest( fs2, numTrees, maxChecks, 0 ).closest( fs1, rod ), matches );
+	}
+
+	/**
+	 * Approximate replacement for
+	 * {@link FeatureTransform#matchFeatures(List, List, List, double)}.
+	 * Uses a default forest over fs2, or exact search if fs2 is small.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param matches
+	 * @param rod closest/next closest distance ratio
+	 */
+	public static void matchFeatures(
+			final List< Feature > fs1,
+			final List< Feature > fs2,
+			final List< PointMatch > matches,
+			final double rod )
+	{
+		if ( fs2.size() < minForestSize )
+			matchFeaturesExact( fs1, fs2, matches, rod );
+		else
+			matchFeatures( fs1, fs2, matches, rod, defaultNumTrees, defaultMaxChecks );
+	}
+
+	/**
+	 * Parallel exact version of
+	 * {@link FeatureTransform#matchFeatures(List, List, List, double)}.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param matches
+	 * @param rod closest/next closest distance ratio
+	 */
+	public static void matchFeaturesExact(
+			final List< Feature > fs1,
+			final List< Feature > fs2,
+			final List< PointMatch > matches,
+			final double rod )
+	{
+		addMatches( fs1, fs2, closestExact( fs1, fs2, rod ), matches );
+	}
+}
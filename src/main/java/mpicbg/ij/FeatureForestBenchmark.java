@@ -0,0 +1,125 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.ij;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+import mpicbg.util.Timer;
+
+/**
+ * Compares speed and recall of {@link FeatureForest} with the brute force
+ * {@link FeatureTransform#matchFeatures(List, List, List, double)} on
+ * synthetic SIFT-like descriptors.  Half of the query features are noisy
+ * copies of target features, the other half are random.
+ *
+ * Usage: <code>FeatureForestBenchmark [numFeatures [numTrees [maxChecks]]]</code>
+ */
+public class FeatureForestBenchmark
+{
+	final static private int numDimensions = 128;
+	final static private double rod = 0.92;
+
+	private static float[] randomDescriptor( final Random rnd )
+	{
+		final float[] descriptor = new float[ numDimensions ];
+		double norm = 0;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			descriptor[ d ] = ( float )Math.abs( rnd.nextGaussian() );
+			norm += descriptor[ d ] * descriptor[ d ];
+		}
+		norm = Math.sqrt( norm );
+		for ( int d = 0; d < numDimensions; ++d )
+			descriptor[ d ] /= norm;
+		return descriptor;
+	}
+
+	private static HashSet< List< Double > > keys( final List< PointMatch > matches )
+	{
+		final HashSet< List< Double > > keys = new HashSet< List< Double > >();
+		for ( final PointMatch m : matches )
+		{
+			final double[] p1 = m.getP1().getL();
+			final double[] p2 = m.getP2().getL();
+			final ArrayList< Double > key = new ArrayList< Double >();
+			key.add( p1[ 0 ] );
+			key.add( p1[ 1 ] );
+			key.add( p2[ 0 ] );
+			key.add( p2[ 1 ] );
+			keys.add( key );
+		}
+		return keys;
+	}
+
+	private static double recall( final List< PointMatch > reference, final List< PointMatch > matches )
+	{
+		final HashSet< List< Double > > referenceKeys = keys( reference );
+		int n = 0;
+		for ( final List< Double > key : keys( matches ) )
+			if ( referenceKeys.contains( key ) )
+				++n;
+		return referenceKeys.isEmpty() ? 1 : ( double )n / referenceKeys.size();
+	}
+
+	public static void main( final String... args )
+	{
+		final int numFeatures = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 20000;
+		final int numTrees = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : FeatureForest.defaultNumTrees;
+		final int maxChecks = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : FeatureForest.defaultMaxChecks;
+
+		final Random rnd = new Random( 0 );
+		final ArrayList< Feature > fs1 = new ArrayList< Feature >();
+		final ArrayList< Feature > fs2 = new ArrayList< Feature >();
+		for ( int i = 0; i < numFeatures; ++i )
+		{
+			final float[] descriptor = randomDescriptor( rnd );
+			fs2.add( new Feature( 1, 0, new double[]{ i, 0 }, descriptor ) );
+			final float[] query;
+			if ( i % 2 == 0 )
+			{
+				query = descriptor.clone();
+				for ( int d = 0; d < numDimensions; ++d )
+					query[ d ] += 0.02 * rnd.nextGaussian();
+			}
+			else
+				query = randomDescriptor( rnd );
+			fs1.add( new Feature( 1, 0, new double[]{ i, 1 }, query ) );
+		}
+
+		final Timer timer = new Timer();
+
+		timer.start();
+		final ArrayList< PointMatch > bruteForce = new ArrayList< PointMatch >();
+		FeatureTransform.matchFeatures( fs1, fs2, bruteForce, rod );
+		System.out.println( "brute force  : " + timer.stop() + "ms, " + bruteForce.size() + " matches" );
+
+		timer.start();
+		final ArrayList< PointMatch > exact = new ArrayList< PointMatch >();
+		FeatureForest.matchFeaturesExact( fs1, fs2, exact, rod );
+		System.out.println( "exact        : " + timer.stop() + "ms, " + exact.size() + " matches, recall " + recall( bruteForce, exact ) );
+
+		timer.start();
+		final ArrayList< PointMatch > approximate = new ArrayList< PointMatch >();
+		FeatureForest.matchFeatures( fs1, fs2, approximate, rod, numTrees, maxChecks );
+		System.out.println( "forest       : " + timer.stop() + "ms, " + approximate.size() + " matches, recall " + recall( bruteForce, approximate ) );
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.ij;
+
+import java.util.stream.IntStream;
+
+import net.imglib2.RealCursor;
+import net.imglib2.RealPointSampleList;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Paints each pixel of an ARGB image with the color of its nearest seed,
+ * i.e. renders the Voronoi diagram of a set of colored points.
+ *
+ * This is the lower envelope pass of the Felzenszwalb &amp; Huttenlocher
+ * Euclidean distance transform, applied row by row.  The seeds have
+ * sub-pixel coordinates, so the column pass reduces to the exact vertical
+ * distance of each seed to the row, and every row is labeled from the
+ * lower envelope of one parabola per seed in O(#seeds + width).  Rows are
+ * processed in parallel.  Up to ties, the result is identical to querying
+ * the nearest seed for every pixel.
+ */
+public class VoronoiRenderer
+{
+	final static private int rowsPerBlock = 16;
+
+	private VoronoiRenderer() {}
+
+	/**
+	 * @param pixels ARGB pixels, row major
+	 * @param width
+	 * @param height
+	 * @param xs seed x-coordinates
+	 * @param ys seed y-coordinates
+	 * @param colors seed colors
+	 */
+	public static void render(
+			final int[] pixels,
+			final int width,
+			final int height,
+			final double[] xs,
+			final double[] ys,
+			final int[] colors )
+	{
+		final int n = xs.length;
+		if ( n == 0 )
+			return;
+
+		/* seeds in order of x */
+		final int[] order = IntStream.range( 0, n ).boxed().sorted( ( a, b ) -> Double.compare( xs[ a ], xs[ b ] ) ).mapToInt( Integer::intValue ).toArray();
+		final double[] sx = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			sx[ i ] = xs[ order[ i ] ];
+
+		final int numBlocks = ( height + rowsPerBlock - 1 ) / rowsPerBlock;
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				b -> {
+					/* lower envelope: apex, offset, seed, left boundary */
+					final double[] av = new double[ n ];
+					final double[] fv = new double[ n ];
+					final int[] sv = new int[ n ];
+					final double[] z = new double[ n ];
+					final int yMax = Math.min( height, ( b + 1 ) * rowsPerBlock );
+					for ( int y = b * rowsPerBlock; y < yMax; ++y )
+					{
+						int k = -1;
+						for ( int i = 0; i < n; ++i )
+						{
+							final int seed = order[ i ];
+							final double a = sx[ i ];
+							final double dy = y - ys[ seed ];
+							final double f = dy * dy;
+							double s = Double.NEGATIVE_INFINITY;
+							boolean dominated = false;
+							while ( k >= 0 )
+							{
+								if ( a == av[ k ] )
+								{
+									if ( f < fv[ k ] )
+									{
+										--k;
+										continue;
+									}
+									dominated = true;
+									break;
+								}
+								s = ( ( f + a * a ) - ( fv[ k ] + av[ k ] * av[ k ] ) ) / ( 2 * ( a - av[ k ] ) );
+								if ( s <= z[ k ] )
+									--k;
+								else
+									break;
+							}
+							if ( dominated )
+								continue;
+							++k;
+							av[ k ] = a;
+							fv[ k ] = f;
+							sv[ k ] = seed;
+							z[ k ] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+						}
+
+						final int offset = y * width;
+						for ( int x = 0, j = 0; x < width; ++x )
+						{
+							while ( j < k && z[ j + 1 ] < x )
+								++j;
+							pixels[ offset + x ] = colors[ sv[ j ] ];
+						}
+					}
+				} );
+	}
+
+	/**
+	 * @param pixels ARGB pixels, row major
+	 * @param width
+	 * @param height
+	 * @param seeds colored 2D seeds
+	 */
+	public static void render(
+			final int[] pixels,
+			final int width,
+			final int height,
+			final RealPointSampleList< ARGBType > seeds )
+	{
+		final int n = ( int )seeds.size();
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final int[] colors = new int[ n ];
+		final RealCursor< ARGBType > c = seeds.cursor();
+		for ( int i = 0; i < n; ++i )
+		{
+			c.fwd();
+			xs[ i ] = c.getDoublePosition( 0 );
+			ys[ i ] = c.getDoublePosition( 1 );
+			colors[ i ] = c.get().get();
+		}
+		render( pixels, width, height, xs, ys, colors );
+	}
+}
@@ -1,26 +1,35 @@
 package mpicbg.ij.plugin;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
-import org.janelia.saalfeldlab.InterpolatedRealTransform;
+import org.janelia.saalfeldlab.BatchRealTransform;
+import org.janelia.saalfeldlab.MappedDoubleRandomAccessibleInterval;
+import org.janelia.saalfeldlab.PositionFieldContainer;
 import org.janelia.saalfeldlab.PositionFieldTransform;
 import org.janelia.saalfeldlab.RealPositionRealRandomAccessible;
+import org.janelia.saalfeldlab.TiffRegionReader;
 
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.FileSaver;
 import ij.io.Opener;
 import ij.process.FloatProcessor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.DoubleArray;
 import net.imglib2.img.planar.PlanarImg;
@@ -30,50 +39,32 @@ import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.DeformationFieldTransform;
 import net.imglib2.realtransform.RealTransform;
-import net.imglib2.realtransform.RealTransformRandomAccessible;
 import net.imglib2.realtransform.RealTransformRealRandomAccessible;
-import net.imglib2.realtransform.RealTransformSequence;
-import net.imglib2.type.Type;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
 public class ApplyFlow
 {
-	private static final < T extends Type< T > > void copy( final RandomAccessible< ? extends T > source, final RandomAccessibleInterval< T > target )
-	{
-		Views.flatIterable( Views.interval( Views.pair( source, target ), target ) ).forEach(
-				pair -> pair.getB().set( pair.getA() ) );
-	}
+	final static private int rowsPerBlock = 16;
 
-	private static final FloatProcessor materialize( final RandomAccessibleInterval< FloatType > source )
+	/**
+	 * Wrap the pixels of a {@link FloatProcessor} as an interpolated and
+	 * border extended {@link RealRandomAccessible} without copying them.
+	 * Create this once per source and reuse it for all warps.
+	 *
+	 * @param source
+	 * @return
+	 */
+	private static final RealRandomAccessible< FloatType > createInterpolatedSource( final FloatProcessor source )
 	{
-		final FloatProcessor target = new FloatProcessor( ( int )source.dimension( 0 ), ( int )source.dimension( 1 ) );
-		copy(
-				Views.zeroMin( source ),
-				ArrayImgs.floats(
-						( float[] )target.getPixels(),
-						target.getWidth(),
-						target.getHeight() ) );
-		return target;
-	}
-
-	private static final RandomAccessibleInterval< FloatType > createTransformedInterval(
-			final FloatProcessor source,
-			final Interval targetInterval,
-			final RealTransform transformFromSource )
-	{
-		return Views.interval(
-						new RealTransformRandomAccessible<>(
-							Views.interpolate(
-									Views.extendBorder(
-										ArrayImgs.floats(
-											( float[] )source.convertToFloatProcessor().getPixels(),
-											source.getWidth(),
-											source.getHeight() ) ),
-									new NLinearInterpolatorFactory<>() ),
-							transformFromSource ),
-						targetInterval );
+		return Views.interpolate(
+				Views.extendBorder(
+					ArrayImgs.floats(
+						( float[] )source.getPixels(),
+						source.getWidth(),
+						source.getHeight() ) ),
+				new NLinearInterpolatorFactory<>() );
 	}
 
 	private static final DeformationFieldTransform< DoubleType > createDeformationFieldTransform(
@@ -115,117 +106,459 @@ public class ApplyFlow
 				transform );
 	}
 
-	private static final void writeDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
+
+
+
+	/**
+	 * Render the source warped by the interpolation between the position
+	 * field followed by the affine and the affine alone for several lambdas
+	 * in one pass.  Both transforms are evaluated once per pixel, row by row
+	 * as {@link BatchRealTransform batches}, only the blending and sampling
+	 * is repeated per lambda.  Rows are rendered in parallel, each block of
+	 * rows with its own copy of the position field.
+	 *
+	 * @param source
+	 * @param xPositions
+	 * @param yPositions
+	 * @param width
+	 * @param height
+	 * @param affine
+	 * @param lambdas
+	 * @return one {@link FloatProcessor} per lambda
+	 */
+	final public FloatProcessor[] run(
+			final RealRandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final int width,
+			final int height,
+			final AffineTransform2D affine,
+			final double... lambdas )
 	{
-		final File file = new File( filePath );
-		if ( !file.getParentFile().exists() )
-			file.getParentFile().mkdirs();
-		if ( !file.exists() )
-			file.createNewFile();
+		final NLinearInterpolatorFactory< DoubleType > interpolatorFactory = new NLinearInterpolatorFactory<>();
+		@SuppressWarnings( "unchecked" )
+		final PositionFieldTransform< DoubleType > positions =
+				new PositionFieldTransform<>(
+						new RealRandomAccessible[]{
+							Views.interpolate( Views.extendBorder( xPositions ), interpolatorFactory ),
+							Views.interpolate( Views.extendBorder( yPositions ), interpolatorFactory )
+						});
 
-		try ( final DataOutputStream dos = new DataOutputStream( new FileOutputStream( file ) ) )
+		final FloatProcessor[] targets = new FloatProcessor[ lambdas.length ];
+		final float[][] targetPixels = new float[ lambdas.length ][];
+		for ( int k = 0; k < lambdas.length; ++k )
 		{
-			for ( final DoubleType t : stream )
-				dos.writeDouble( t.get() );
+			targets[ k ] = new FloatProcessor( width, height );
+			targetPixels[ k ] = ( float[] )targets[ k ].getPixels();
 		}
+
+		final int numBlocks = ( height + rowsPerBlock - 1 ) / rowsPerBlock;
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				block -> {
+					final RealTransform blockPositions = positions.copy();
+					final RealRandomAccess< FloatType > access = source.realRandomAccess();
+					final double[][] p = new double[ 2 ][ width ];
+					final double[][] pf = new double[ 2 ][ width ];
+					final double[][] pa = new double[ 2 ][ width ];
+					final double[][] pb = new double[ 2 ][ width ];
+					for ( int x = 0; x < width; ++x )
+						p[ 0 ][ x ] = x;
+					final int maxY = Math.min( height, ( block + 1 ) * rowsPerBlock );
+					for ( int y = block * rowsPerBlock; y < maxY; ++y )
+					{
+						Arrays.fill( p[ 1 ], y );
+
+						/* whole rows, positions then affine, and the affine alone */
+						BatchRealTransform.apply( blockPositions, p, pf, width );
+						BatchRealTransform.apply( affine, pf, pa, width );
+						BatchRealTransform.apply( affine, p, pb, width );
+
+						for ( int x = 0; x < width; ++x )
+						{
+							pa[ 0 ][ x ] -= pb[ 0 ][ x ];
+							pa[ 1 ][ x ] -= pb[ 1 ][ x ];
+						}
+
+						for ( int k = 0; k < lambdas.length; ++k )
+						{
+							final double lambda = lambdas[ k ];
+							final float[] pixels = targetPixels[ k ];
+							for ( int x = 0, i = y * width; x < width; ++x, ++i )
+							{
+								access.setPosition( pa[ 0 ][ x ] * lambda + pb[ 0 ][ x ], 0 );
+								access.setPosition( pa[ 1 ][ x ] * lambda + pb[ 1 ][ x ], 1 );
+								pixels[ i ] = access.get().get();
+							}
+						}
+					}
+				} );
+
+		return targets;
 	}
 
-	private static final void readDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
+	final public FloatProcessor run(
+			final RealRandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final int width,
+			final int height,
+			final AffineTransform2D affine,
+			final double lambda ) throws IOException
 	{
-		final File file = new File( filePath );
-		try ( final DataInputStream dis = new DataInputStream( new FileInputStream( file ) ) )
-		{
-			for ( final DoubleType t : stream )
-				t.set( dis.readDouble() );
-		}
+		return run( source, xPositions, yPositions, width, height, affine, new double[]{ lambda } )[ 0 ];
 	}
 
-
-
 	final public FloatProcessor run(
 			final FloatProcessor ip,
-			final ArrayImg< DoubleType, ? > xPositions,
-			final ArrayImg< DoubleType, ? > yPositions,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
 			final int width,
 			final int height,
 			final AffineTransform2D affine,
 			final double lambda ) throws IOException
 	{
-		final NLinearInterpolatorFactory< DoubleType > interpolatorFactory = new NLinearInterpolatorFactory<>();
-		@SuppressWarnings( "unchecked" )
-		final PositionFieldTransform< DoubleType > positions =
-				new PositionFieldTransform<>(
-						new RealRandomAccessible[]{
-							Views.interpolate( Views.extendBorder( xPositions ), interpolatorFactory ),
-							Views.interpolate( Views.extendBorder( yPositions ), interpolatorFactory )
-						});
+		return run(
+				createInterpolatedSource( ip ),
+				xPositions,
+				yPositions,
+				width,
+				height,
+				affine,
+				lambda );
+	}
 
-		final RealTransformSequence transformList = new RealTransformSequence();
-		transformList.add( positions );
-		transformList.add( affine );
 
-		final InterpolatedRealTransform interpolatedTransform =
-				new InterpolatedRealTransform(
-						transformList,
+	/**
+	 * Render one frame per lambda and save it as a TIFF as soon as it is
+	 * rendered, without ImageJ's GUI.  Frame n is written on a separate
+	 * thread while frame n+1 is rendered, so at most two frames are held in
+	 * memory.
+	 *
+	 * @param source
+	 * @param xPositions
+	 * @param yPositions
+	 * @param width
+	 * @param height
+	 * @param affine
+	 * @param lambdas
+	 * @param outputDirectory frames are saved as <code>%04d.tif</code>
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	final public void runHeadless(
+			final RealRandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final int width,
+			final int height,
+			final AffineTransform2D affine,
+			final double[] lambdas,
+			final String outputDirectory ) throws IOException, InterruptedException
+	{
+		new File( outputDirectory ).mkdirs();
+
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future< Boolean > pending = null;
+			for ( int k = 0; k < lambdas.length; ++k )
+			{
+				final FloatProcessor ipTransformed = run(
+						source,
+						xPositions,
+						yPositions,
+						width,
+						height,
 						affine,
-						lambda );
+						lambdas[ k ] );
+
+				/* wait for the previous frame before queueing this one */
+				if ( pending != null && !pending.get() )
+					throw new IOException( "Could not save frame " + ( k - 1 ) + "." );
 
-		return materialize(
-				createTransformedInterval(
-						ip,
-						new FinalInterval( width, height ),
-						interpolatedTransform ) );
+				final String path = new File( outputDirectory, String.format( "%04d.tif", k ) ).getPath();
+				final ImagePlus impTransformed = new ImagePlus( "lambda " + lambdas[ k ], ipTransformed );
+				pending = writer.submit( () -> new FileSaver( impTransformed ).saveAsTiff( path ) );
+			}
+
+			if ( pending != null && !pending.get() )
+				throw new IOException( "Could not save frame " + ( lambdas.length - 1 ) + "." );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new IOException( e.getCause() );
+		}
+		finally
+		{
+			writer.shutdown();
+		}
+	}
+
+	/**
+	 * Render one output tile for {@link #runTiled}.
+	 */
+	private static void renderTile(
+			final TiffRegionReader reader,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final AffineTransform2D affine,
+			final double lambda,
+			final FileChannel output,
+			final int x0,
+			final int y0,
+			final int tileWidth,
+			final int tileHeight ) throws IOException
+	{
+		final int width = ( int )xPositions.dimension( 0 );
+		final int sourceWidth = reader.getWidth();
+		final int sourceHeight = reader.getHeight();
+
+		/* source coordinates of all tile pixels and their bounding box */
+		final double[] xs = new double[ tileWidth * tileHeight ];
+		final double[] ys = new double[ tileWidth * tileHeight ];
+		final RandomAccess< DoubleType > xAccess = xPositions.randomAccess();
+		final RandomAccess< DoubleType > yAccess = yPositions.randomAccess();
+		final double[] p = new double[ 2 ];
+		final double[] pa = new double[ 2 ];
+		final double[] pb = new double[ 2 ];
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for ( int y = 0, i = 0; y < tileHeight; ++y )
+		{
+			xAccess.setPosition( y0 + y, 1 );
+			yAccess.setPosition( y0 + y, 1 );
+			for ( int x = 0; x < tileWidth; ++x, ++i )
+			{
+				xAccess.setPosition( x0 + x, 0 );
+				yAccess.setPosition( x0 + x, 0 );
+				p[ 0 ] = xAccess.get().get();
+				p[ 1 ] = yAccess.get().get();
+				affine.apply( p, pa );
+				p[ 0 ] = x0 + x;
+				p[ 1 ] = y0 + y;
+				affine.apply( p, pb );
+				xs[ i ] = ( pa[ 0 ] - pb[ 0 ] ) * lambda + pb[ 0 ];
+				ys[ i ] = ( pa[ 1 ] - pb[ 1 ] ) * lambda + pb[ 1 ];
+				if ( Double.isFinite( xs[ i ] ) && Double.isFinite( ys[ i ] ) )
+				{
+					minX = Math.min( minX, xs[ i ] );
+					minY = Math.min( minY, ys[ i ] );
+					maxX = Math.max( maxX, xs[ i ] );
+					maxY = Math.max( maxY, ys[ i ] );
+				}
+			}
+		}
+
+		/* the region covering all bilinear neighbors of finite positions, clamped like extendBorder */
+		final boolean anyFinite = minX <= maxX;
+		final int rx0 = anyFinite ? clamp( Math.floor( minX ), sourceWidth ) : 0;
+		final int ry0 = anyFinite ? clamp( Math.floor( minY ), sourceHeight ) : 0;
+		final int rx1 = anyFinite ? clamp( Math.floor( maxX ) + 1, sourceWidth ) : 0;
+		final int ry1 = anyFinite ? clamp( Math.floor( maxY ) + 1, sourceHeight ) : 0;
+		final int rw = rx1 - rx0 + 1;
+		final float[] region = anyFinite ? reader.read( rx0, ry0, rw, ry1 - ry0 + 1 ) : null;
+
+		final ByteBuffer row = ByteBuffer.allocate( tileWidth * 4 );
+		for ( int y = 0, i = 0; y < tileHeight; ++y )
+		{
+			row.clear();
+			for ( int x = 0; x < tileWidth; ++x, ++i )
+			{
+				if ( !( Double.isFinite( xs[ i ] ) && Double.isFinite( ys[ i ] ) ) )
+				{
+					row.putFloat( Float.NaN );
+					continue;
+				}
+				final double fx = Math.floor( xs[ i ] );
+				final double fy = Math.floor( ys[ i ] );
+				final double dx = xs[ i ] - fx;
+				final double dy = ys[ i ] - fy;
+				final int ix0 = clamp( fx, sourceWidth ) - rx0;
+				final int ix1 = clamp( fx + 1, sourceWidth ) - rx0;
+				final int iy0 = ( clamp( fy, sourceHeight ) - ry0 ) * rw;
+				final int iy1 = ( clamp( fy + 1, sourceHeight ) - ry0 ) * rw;
+				final double a = region[ iy0 + ix0 ] + ( region[ iy0 + ix1 ] - region[ iy0 + ix0 ] ) * dx;
+				final double b = region[ iy1 + ix0 ] + ( region[ iy1 + ix1 ] - region[ iy1 + ix0 ] ) * dx;
+				row.putFloat( ( float )( a + ( b - a ) * dy ) );
+			}
+			row.flip();
+			long position = ( ( long )( y0 + y ) * width + x0 ) * 4;
+			while ( row.hasRemaining() )
+				position += output.write( row, position );
+		}
 	}
 
+	/**
+	 * Clamp in double before casting, so that far outliers do not overflow.
+	 */
+	private static int clamp( final double x, final int size )
+	{
+		return ( int )Math.max( 0, Math.min( size - 1, x ) );
+	}
 
-	public final static void main( final String... args ) throws IOException
+	/**
+	 * Render the source warped like {@link #run(RealRandomAccessible,
+	 * RandomAccessibleInterval, RandomAccessibleInterval, int, int,
+	 * AffineTransform2D, double)} tile by tile and in parallel.  For each
+	 * tile, the bounding box of the source coordinates is computed from the
+	 * position field and only that region of the source is read.  Lazy
+	 * position fields, e.g. {@link MappedDoubleRandomAccessibleInterval} or
+	 * {@link PositionFieldContainer}, and tiled output keep the memory
+	 * footprint independent of the section size.  Pixels with non-finite
+	 * positions are NaN.
+	 *
+	 * @param sourcePath uncompressed grayscale TIFF, see {@link TiffRegionReader}
+	 * @param xPositions
+	 * @param yPositions
+	 * @param affine
+	 * @param lambda
+	 * @param outputPath raw big-endian float32 image of the size of the
+	 *     position field
+	 * @param tileSize
+	 * @throws IOException
+	 */
+	final public void runTiled(
+			final String sourcePath,
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final AffineTransform2D affine,
+			final double lambda,
+			final String outputPath,
+			final int tileSize ) throws IOException
 	{
-		new ImageJ();
+		final int width = ( int )xPositions.dimension( 0 );
+		final int height = ( int )xPositions.dimension( 1 );
+		final int numTilesX = ( width + tileSize - 1 ) / tileSize;
+		final int numTilesY = ( height + tileSize - 1 ) / tileSize;
 
-		final ImagePlus imp = new Opener().openImage( "/home/saalfeld/tmp/dagmar/ken27-flattened-xy-00303.tif" );
-		final FloatProcessor ip = imp.getStack().getProcessor( 1 ).convertToFloatProcessor();
+		try (
+				final TiffRegionReader reader = TiffRegionReader.open( sourcePath );
+				final FileChannel output = FileChannel.open(
+						new File( outputPath ).toPath(),
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			IntStream.range( 0, numTilesX * numTilesY ).parallel().forEach(
+					t -> {
+						final int x0 = ( t % numTilesX ) * tileSize;
+						final int y0 = ( t / numTilesX ) * tileSize;
+						try
+						{
+							renderTile(
+									reader,
+									xPositions,
+									yPositions,
+									affine,
+									lambda,
+									output,
+									x0,
+									y0,
+									Math.min( tileSize, width - x0 ),
+									Math.min( tileSize, height - y0 ) );
+						}
+						catch ( final IOException e )
+						{
+							throw new UncheckedIOException( e );
+						}
+					} );
+		}
+		catch ( final UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Usage: <code>ApplyFlow [outputDirectory]</code> or
+	 * <code>ApplyFlow tiled outputPath [lambda [tileSize]]</code>.  With an
+	 * output directory, all frames are saved there headless, otherwise they
+	 * are shown as a stack.  The tiled mode renders one frame out-of-core
+	 * into a raw float32 file.
+	 */
+	public final static void main( final String... args ) throws IOException, InterruptedException
+	{
+		final boolean tiled = args.length > 1 && args[ 0 ].equals( "tiled" );
+		final boolean headless = args.length > 0;
+		if ( !headless )
+			new ImageJ();
 
-		final int width = 5670;
-		final int height = 6426;
+		final String sourcePath = "/home/saalfeld/tmp/dagmar/ken27-flattened-xy-00303.tif";
+		final String basePath = "/home/saalfeld/tmp/dagmar/26-03173.27-00303.rigid.tif";
 
-		final String xPath = "/home/saalfeld/tmp/dagmar/26-03173.27-00303.rigid.tif.x.bin";
-		final String yPath = "/home/saalfeld/tmp/dagmar/26-03173.27-00303.rigid.tif.y.bin";
-		final ArrayImg< DoubleType, ? > xPositions = ArrayImgs.doubles( width, height );
-		final ArrayImg< DoubleType, ? > yPositions = ArrayImgs.doubles( width, height );
-		readDoubles( xPath, xPositions );
-		readDoubles( yPath, yPositions );
+		final int width;
+		final int height;
+		final RandomAccessibleInterval< DoubleType > xPositions;
+		final RandomAccessibleInterval< DoubleType > yPositions;
+
+		/* prefer the chunked container, its header knows the dimensions */
+		if ( new File( basePath + ".flow" ).exists() )
+		{
+			final PositionFieldContainer container = PositionFieldContainer.open( basePath + ".flow" );
+			width = ( int )container.getWidth();
+			height = ( int )container.getHeight();
+			xPositions = container.positions( 0 );
+			yPositions = container.positions( 1 );
+		}
+		else
+		{
+			width = 5670;
+			height = 6426;
+			xPositions = MappedDoubleRandomAccessibleInterval.open( basePath + ".x.bin", width, height );
+			yPositions = MappedDoubleRandomAccessibleInterval.open( basePath + ".y.bin", width, height );
+		}
 
 		final AffineTransform2D rigid = new AffineTransform2D();
 		rigid.set(
 				0.99999748954962, -0.002240735249145, 13.832151825285585,
 				0.002240735249145, 0.99999748954962, 14.594295519243587 );
 
-		final ImageStack stack = new ImageStack( width, height );
-		ImagePlus impTransformed = null;
+		if ( tiled )
+		{
+			new ApplyFlow().runTiled(
+					sourcePath,
+					xPositions,
+					yPositions,
+					rigid.inverse(),
+					args.length > 2 ? Double.parseDouble( args[ 2 ] ) : 1.0,
+					args[ 1 ],
+					args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 1024 );
+			return;
+		}
+
+		final ImagePlus imp = new Opener().openImage( sourcePath );
+		final FloatProcessor ip = imp.getStack().getProcessor( 1 ).convertToFloatProcessor();
+		final RealRandomAccessible< FloatType > source = createInterpolatedSource( ip );
 
-		for ( double lambda = 0; lambda <= 1.0; lambda += 0.1 )
+		final double[] lambdas = new double[ 11 ];
+		Arrays.setAll( lambdas, i -> i / 10.0 );
+
+		if ( headless )
 		{
-			final FloatProcessor ipTransformed = new ApplyFlow().run(
-					ip,
+			new ApplyFlow().runHeadless(
+					source,
 					xPositions,
 					yPositions,
 					width,
 					height,
 					rigid.inverse(),
-					lambda );
+					lambdas,
+					args[ 0 ] );
+			return;
+		}
 
-			stack.addSlice( lambda + "", ipTransformed );
+		final FloatProcessor[] ipsTransformed = new ApplyFlow().run(
+				source,
+				xPositions,
+				yPositions,
+				width,
+				height,
+				rigid.inverse(),
+				lambdas );
 
-			if ( impTransformed == null )
-			{
-				impTransformed = new ImagePlus( "transformed", stack );
-				impTransformed.show();
-			}
-			else
-			{
-				impTransformed.setStack( stack );
-				impTransformed.updateAndDraw();
-			}
-		}
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int k = 0; k < lambdas.length; ++k )
+			stack.addSlice( lambdas[ k ] + "", ipsTransformed[ k ] );
+
+		new ImagePlus( "transformed", stack ).show();
 	}
 }
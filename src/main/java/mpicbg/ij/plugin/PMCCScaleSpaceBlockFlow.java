@@ -1,16 +1,22 @@
 package mpicbg.ij.plugin;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
+import org.janelia.saalfeldlab.FlowColorWheel;
+import org.janelia.saalfeldlab.FlowPyramidWriter;
+import org.janelia.saalfeldlab.PositionFieldChain;
+import org.janelia.saalfeldlab.PositionFieldExporter;
+import org.janelia.saalfeldlab.PositionFieldIO;
 import org.janelia.saalfeldlab.PositionFieldTransform;
-import org.janelia.saalfeldlab.PositionRandomAccessible;
-import org.janelia.saalfeldlab.RealPositionRealRandomAccessible;
+import org.janelia.saalfeldlab.SaturationToNoise;
+import org.janelia.saalfeldlab.ScalePyramid;
 
 import ij.IJ;
 import ij.ImageJ;
@@ -27,15 +33,12 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
-import ini.trakem2.imaging.filters.ValueToNoise;
 import mpicbg.ij.integral.BlockPMCC;
 import mpicbg.ij.integral.IntegralImage;
-import mpicbg.ij.util.Filter;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.TranslationModel2D;
-import mpicbg.util.Util;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
@@ -53,12 +56,9 @@ import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.DeformationFieldTransform;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformRandomAccessible;
-import net.imglib2.realtransform.RealTransformRealRandomAccessible;
-import net.imglib2.realtransform.RealTransformSequence;
 import net.imglib2.realtransform.Scale2D;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
@@ -87,55 +87,12 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 
 	final static protected void colorCircle( final ColorProcessor ip, final int maxDistance )
 	{
-		final int r1 = Math.min( ip.getWidth(), ip.getHeight() ) / 2;
-
-		for ( int y = 0; y < ip.getHeight(); ++y )
-		{
-			final float dy = y - ip.getHeight() / 2;
-			for ( int x = 0; x < ip.getWidth(); ++x )
-			{
-				final float dx = x - ip.getWidth() / 2;
-				final float l = ( float )Math.sqrt( dx * dx + dy * dy );
-
-				if ( l > r1 )
-					ip.putPixel( x, y, 0 );
-				else
-					ip.putPixel( x, y, colorVector( dx / maxDistance, dy / maxDistance ) );
-			}
-		}
+		FlowColorWheel.colorCircle( ip, maxDistance );
 	}
 
 	final static protected int colorVector( final float xs, final float ys )
 	{
-		final double a = Math.sqrt( xs * xs + ys * ys );
-		if ( a == 0.0 ) return 0;
-
-		double o = ( Math.atan2( xs / a, ys / a ) + Math.PI ) / Math.PI * 3;
-
-		final double r, g, b;
-
-		if ( o < 3 )
-			r = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
-		else
-			r = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
-
-		o += 2;
-		if ( o >= 6 ) o -= 6;
-
-		if ( o < 3 )
-			g = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
-		else
-			g = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
-
-		o += 2;
-		if ( o >= 6 ) o -= 6;
-
-		if ( o < 3 )
-			b = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
-		else
-			b = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
-
-		return ( ( ( ( int )( r * 255 ) << 8 ) | ( int )( g * 255 ) ) << 8 ) | ( int )( b * 255 );
+		return FlowColorWheel.colorVector( xs, ys );
 	}
 
 	final static protected void algebraicToColor(
@@ -144,47 +101,7 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			final int[] ipColorPixels,
 			final double max )
 	{
-		final int n = ipXPixels.length;
-		for ( int i = 0; i < n; ++i )
-		{
-			final double x = ipXPixels[ i ] / max;
-			final double y = ipYPixels[ i ] / max;
-
-			final double r = Math.sqrt( x * x + y * y );
-			final double phi = Math.atan2( x / r, y / r );
-
-			if ( r == 0.0 )
-				ipColorPixels[ i ] = 0;
-			else
-			{
-				final double red, green, blue;
-
-				double o = ( phi + Math.PI ) / Math.PI * 3;
-
-				if ( o < 3 )
-					red = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					red = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				o += 2;
-				if ( o >= 6 ) o -= 6;
-
-				if ( o < 3 )
-					green = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					green = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				o += 2;
-				if ( o >= 6 ) o -= 6;
-
-				if ( o < 3 )
-					blue = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					blue = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				ipColorPixels[ i ] =  ( ( ( ( int )( red * 255 ) << 8 ) | ( int )( green * 255 ) ) << 8 ) | ( int )( blue * 255 );
-			}
-		}
+		FlowColorWheel.algebraicToColor( ipXPixels, ipYPixels, ipColorPixels, max );
 	}
 
 	final static protected void algebraicToColor(
@@ -193,47 +110,7 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			final int[] ipColorPixels,
 			final double max )
 	{
-		final int n = ipXPixels.length;
-		for ( int i = 0; i < n; ++i )
-		{
-			final double x = ipXPixels[ i ] / max;
-			final double y = ipYPixels[ i ] / max;
-
-			final double r = Math.sqrt( x * x + y * y );
-			final double phi = Math.atan2( x / r, y / r );
-
-			if ( r == 0.0 )
-				ipColorPixels[ i ] = 0;
-			else
-			{
-				final double red, green, blue;
-
-				double o = ( phi + Math.PI ) / Math.PI * 3;
-
-				if ( o < 3 )
-					red = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					red = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				o += 2;
-				if ( o >= 6 ) o -= 6;
-
-				if ( o < 3 )
-					green = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					green = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				o += 2;
-				if ( o >= 6 ) o -= 6;
-
-				if ( o < 3 )
-					blue = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
-				else
-					blue = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
-
-				ipColorPixels[ i ] =  ( ( ( ( int )( red * 255 ) << 8 ) | ( int )( green * 255 ) ) << 8 ) | ( int )( blue * 255 );
-			}
-		}
+		FlowColorWheel.algebraicToColor( ipXPixels, ipYPixels, ipColorPixels, max );
 	}
 
 	static public void opticFlow(
@@ -508,24 +385,48 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 
 
 
+	/**
+	 * Wrap the pixels of a {@link FloatProcessor} as an interpolated and
+	 * border extended {@link RealRandomAccessible} without copying them.
+	 * Create this once per source and reuse it for all warps.
+	 *
+	 * @param source
+	 * @return
+	 */
+	private static final RealRandomAccessible< FloatType > createInterpolatedSource( final FloatProcessor source )
+	{
+		return Views.interpolate(
+				Views.extendBorder(
+					ArrayImgs.floats(
+						( float[] )source.getPixels(),
+						source.getWidth(),
+						source.getHeight() ) ),
+				new NLinearInterpolatorFactory<>() );
+	}
+
 	private static final RandomAccessibleInterval< FloatType > createTransformedInterval(
-			final FloatProcessor source,
+			final RealRandomAccessible< FloatType > source,
 			final Interval targetInterval,
 			final RealTransform transformFromSource )
 	{
 		return Views.interval(
 						new RealTransformRandomAccessible<>(
-							Views.interpolate(
-									Views.extendBorder(
-										ArrayImgs.floats(
-											( float[] )source.convertToFloatProcessor().getPixels(),
-											source.getWidth(),
-											source.getHeight() ) ),
-									new NLinearInterpolatorFactory<>() ),
+							source,
 							transformFromSource ),
 						targetInterval );
 	}
 
+	private static final RandomAccessibleInterval< FloatType > createTransformedInterval(
+			final FloatProcessor source,
+			final Interval targetInterval,
+			final RealTransform transformFromSource )
+	{
+		return createTransformedInterval(
+				createInterpolatedSource( source ),
+				targetInterval,
+				transformFromSource );
+	}
+
 	private static final FloatProcessor convertSignedShortToFloat( final ShortProcessor ip )
 	{
 		final FloatProcessor fp = new FloatProcessor( ip.getWidth(), ip.getHeight() );
@@ -612,13 +513,25 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 	}
 
 
-	private static final RealRandomAccessible< DoubleType > createPositionField(
-			final RealTransform transform,
-			final int d )
+	/**
+	 * Create a {@link RealTransform} that maps from a level of a
+	 * {@link ScalePyramid} into the same level through the full resolution
+	 * position field.  This way, a warped and downsampled image can be
+	 * generated by warping the downsampled image directly.  The scales fold
+	 * with the affine stages at both ends of the chain.
+	 *
+	 * @param positionField
+	 * @param scale
+	 * @return
+	 */
+	private static final RealTransform createScaledPositionFieldTransform(
+			final PositionFieldChain positionField,
+			final double scale )
 	{
-		return new RealTransformRealRandomAccessible<>(
-				new RealPositionRealRandomAccessible( transform.numTargetDimensions(), d ),
-				transform );
+		return positionField.copy()
+				.addFirst( new Scale2D( 1.0 / scale, 1.0 / scale ) )
+				.addLast( new Scale2D( scale, scale ) )
+				.transform();
 	}
 
 
@@ -680,30 +593,6 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 //		impFlowVectors.setDisplayRange( -Math.PI, Math.PI );
 	}
 
-	private static final void writeDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
-	{
-		final File file = new File( filePath );
-		if ( !file.getParentFile().exists() )
-			file.getParentFile().mkdirs();
-		if ( !file.exists() )
-			file.createNewFile();
-
-		try ( final DataOutputStream dos = new DataOutputStream( new FileOutputStream( file ) ) )
-		{
-			for ( final DoubleType t : stream )
-				dos.writeDouble( t.get() );
-		}
-	}
-
-	private static final void readDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
-	{
-		final File file = new File( filePath );
-		try ( final DataInputStream dis = new DataInputStream( new FileInputStream( file ) ) )
-		{
-			for ( final DoubleType t : stream )
-				t.set( dis.readDouble() );
-		}
-	}
 
 	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
 			final FloatProcessor ip1,
@@ -725,31 +614,23 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 		FloatProcessor weights = null;
 
 		/* initialize position field with identity */
-		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
-		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		final PositionFieldChain positionField = new PositionFieldChain( 2 );
 
-		/* filters to mask saturated pixels with noise */
-		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
-		final ValueToNoise filter2 = new ValueToNoise( 255, 0, 255 );
+		/* mask saturated pixels with noise */
+		final FloatProcessor ip1Filtered = SaturationToNoise.process( ( FloatProcessor )ip1.duplicate() );
 
-		FloatProcessor ip1Filtered = filter1.process( ip1 ).convertToFloatProcessor();
-		ip1Filtered = filter2.process( ip1Filtered ).convertToFloatProcessor();
+		final RealRandomAccessible< FloatType > ip2Source = createInterpolatedSource( ip2 );
 
 		/* repeat numIteration times for each scale */
 		for ( int j = 0; j < numIterations ; ++j )
 		{
-			@SuppressWarnings( "unchecked" )
-			FloatProcessor ip2Transformed = materialize(
+			final FloatProcessor ip2Transformed = materialize(
 					createTransformedInterval(
-							ip2,
+							ip2Source,
 							new FinalInterval( ip2.getWidth(), ip2.getHeight() ),
-							new PositionFieldTransform<>(
-									( RealRandomAccessible< DoubleType >[] )new RealRandomAccessible[]{
-										xPositions,
-										yPositions } ) ) );
+							positionField.transform() ) );
 
-			ip2Transformed = filter1.process( ip2Transformed ).convertToFloatProcessor();
-			ip2Transformed = filter2.process( ip2Transformed ).convertToFloatProcessor();
+			SaturationToNoise.process( ip2Transformed );
 
 			final ImageStack seqR = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			final ImageStack seqOpticFlow = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
@@ -801,23 +682,16 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			shiftYFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 
 			/* append deformation field to existing transformation */
-			final DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform(
+			positionField.addFirst( createDeformationFieldTransform(
 					shiftXFloat,
-					shiftYFloat );
-
-			xPositions = new RealTransformRandomAccessible<>(
-					xPositions,
-					deformationField );
-			yPositions = new RealTransformRandomAccessible<>(
-					yPositions,
-					deformationField );
+					shiftYFloat ) );
 		}
 
 		@SuppressWarnings( "unchecked" )
 		final PositionFieldTransform< DoubleType > transform = new PositionFieldTransform<>(
 				new RealRandomAccessible[]{
-						xPositions,
-						yPositions } );
+						positionField.positionField( 0 ),
+						positionField.positionField( 1 ) } );
 
 		return new ValuePair< PositionFieldTransform< DoubleType >, FloatProcessor >( transform, weights );
 	}
@@ -847,42 +721,36 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			++nScales;
 
 		/* initialize position field with identity */
-		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
-		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		final PositionFieldChain positionField = new PositionFieldChain( 2 );
 
-		/* filters to mask saturated pixels with noise */
-		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
-		final ValueToNoise filter2 = new ValueToNoise( 255, 0, 255 );
+		/* pyramids of fixed image, moving image and mask */
+		final ScalePyramid ip1Pyramid = new ScalePyramid( ip1, scaleFactor, nScales );
+		final ScalePyramid ip2Pyramid = new ScalePyramid( ip2, scaleFactor, nScales );
+		final ScalePyramid backgroundMaskPyramid = new ScalePyramid( backgroundMask.convertToFloatProcessor(), scaleFactor, nScales );
 
 		/* loop over scales */
 		for ( int i = 0; i < nScales; ++i )
 		{
-			final double scale = 1.0 / Util.pow( scaleFactor, nScales - 1 - i );
-			FloatProcessor ip1Scaled = Filter.createDownsampled( ip1, scale, 0.5f, 0.5f );
-			ip1Scaled = filter1.process( ip1Scaled ).convertToFloatProcessor();
-			ip1Scaled = filter2.process( ip1Scaled ).convertToFloatProcessor();
-			final FloatProcessor backgroundMaskScaled = Filter.createDownsampled( backgroundMask.convertToFloatProcessor(), scale, 0.5f, 0.5f );
+			final int level = nScales - 1 - i;
+			final double scale = ip1Pyramid.scale( level );
+			/* mask saturated pixels with noise, in place because each level is used only once */
+			final FloatProcessor ip1Scaled = SaturationToNoise.process( ip1Pyramid.get( level ) );
+			final FloatProcessor backgroundMaskScaled = backgroundMaskPyramid.get( level );
+			final FloatProcessor ip2Level = ip2Pyramid.get( level );
+			final RealRandomAccessible< FloatType > ip2LevelSource = createInterpolatedSource( ip2Level );
 
 			/* repeat three times for each scale */
 			for ( int j = 0; j < 3; ++j )
 			{
-				@SuppressWarnings( "unchecked" )
-				final FloatProcessor ip2Transformed = materialize(
+				final FloatProcessor ip2Scaled = materialize(
 						createTransformedInterval(
-								ip2,
-								new FinalInterval( ip2.getWidth(), ip2.getHeight() ),
-								new PositionFieldTransform<>(
-										( RealRandomAccessible< DoubleType >[] )new RealRandomAccessible[]{
-											xPositions,
-											yPositions } ) ) );
-				FloatProcessor ip2Scaled = Filter.createDownsampled(
-						ip2Transformed,
-						scale,
-						0.5f,
-						0.5f );
-
-				ip2Scaled = filter1.process( ip2Scaled ).convertToFloatProcessor();
-				ip2Scaled = filter2.process( ip2Scaled ).convertToFloatProcessor();
+								ip2LevelSource,
+								new FinalInterval( ip2Level.getWidth(), ip2Level.getHeight() ),
+								createScaledPositionFieldTransform(
+										positionField,
+										scale ) ) );
+
+				SaturationToNoise.process( ip2Scaled );
 
 				final ImageStack seqR = new ImageStack( ip1Scaled.getWidth(), ip1Scaled.getHeight() );
 				final ImageStack seqOpticFlow = new ImageStack( ip1Scaled.getWidth(), ip1Scaled.getHeight() );
@@ -936,27 +804,20 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 				shiftYFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 
 				/* append deformation field to existing transformation */
-				final RealTransformSequence transformSequence = new RealTransformSequence();
-				transformSequence.add( new Scale2D( scale, scale ) );
-				transformSequence.add( createDeformationFieldTransform(
-						shiftXFloat,
-						shiftYFloat ) );
-				transformSequence.add( new Scale2D( 1.0 / scale, 1.0 / scale ) );
-
-				xPositions = new RealTransformRandomAccessible<>(
-						xPositions,
-						transformSequence );
-				yPositions = new RealTransformRandomAccessible<>(
-						yPositions,
-						transformSequence );
+				positionField.addFirst(
+						new Scale2D( scale, scale ),
+						createDeformationFieldTransform(
+								shiftXFloat,
+								shiftYFloat ),
+						new Scale2D( 1.0 / scale, 1.0 / scale ) );
 			}
 		}
 
 		@SuppressWarnings( "unchecked" )
 		final PositionFieldTransform< DoubleType > transform = new PositionFieldTransform<>(
 				new RealRandomAccessible[]{
-						xPositions,
-						yPositions } );
+						positionField.positionField( 0 ),
+						positionField.positionField( 1 ) } );
 
 		return new ValuePair< PositionFieldTransform< DoubleType >, FloatProcessor >( transform, weights );
 	}
@@ -1014,44 +875,45 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 		for ( double d = maxDistance; d > scaleFactor; d /= scaleFactor )
 			++nScales;
 
-		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
-		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		final PositionFieldChain positionField = new PositionFieldChain( 2 );
+
+		final RealRandomAccessible< FloatType > ip2Source = createInterpolatedSource( ip2 );
 
 		final ImageStack ip2Stack = new ImageStack( ip2.getWidth(), ip2.getHeight() );
 		ip2Stack.addSlice( "-1", ip2 );
 		final ImagePlus impIp2Stack = new ImagePlus( "ip2 transformed", ip2Stack);
 		impIp2Stack.show();
 
-		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
-		final ValueToNoise filter2 = new ValueToNoise( 255, 0, 255 );
+		final ScalePyramid ip1Pyramid = new ScalePyramid( ip1, scaleFactor, nScales );
+		final ScalePyramid ip2Pyramid = new ScalePyramid( ip2, scaleFactor, nScales );
+		final ScalePyramid backgroundMaskPyramid = new ScalePyramid( backgroundMask.convertToFloatProcessor(), scaleFactor, nScales );
 
 		for ( int i = 0; i < nScales; ++i )
 		{
-			final double scale = 1.0 / Util.pow( scaleFactor, nScales - 1 - i );
-			FloatProcessor ip1Scaled = Filter.createDownsampled( ip1, scale, 0.5f, 0.5f );
-			ip1Scaled = filter1.process( ip1Scaled ).convertToFloatProcessor();
-			ip1Scaled = filter2.process( ip1Scaled ).convertToFloatProcessor();
-			final FloatProcessor backgroundMaskScaled = Filter.createDownsampled( backgroundMask.convertToFloatProcessor(), scale, 0.5f, 0.5f );
+			final int level = nScales - 1 - i;
+			final double scale = ip1Pyramid.scale( level );
+			/* mask saturated pixels with noise, in place because each level is used only once */
+			final FloatProcessor ip1Scaled = SaturationToNoise.process( ip1Pyramid.get( level ) );
+			final FloatProcessor backgroundMaskScaled = backgroundMaskPyramid.get( level );
+			final FloatProcessor ip2Level = ip2Pyramid.get( level );
+			final RealRandomAccessible< FloatType > ip2LevelSource = createInterpolatedSource( ip2Level );
 
 			for ( int j = 0; j < 3; ++j )
 			{
-				@SuppressWarnings( "unchecked" )
 				final FloatProcessor ip2Transformed = materialize(
 						createTransformedInterval(
-								ip2,
+								ip2Source,
 								new FinalInterval( ip2.getWidth(), ip2.getHeight() ),
-								new PositionFieldTransform<>(
-										( RealRandomAccessible< DoubleType >[] )new RealRandomAccessible[]{
-											xPositions,
-											yPositions } ) ) );
-				FloatProcessor ip2Scaled = Filter.createDownsampled(
-						ip2Transformed,
-						scale,
-						0.5f,
-						0.5f );
-
-				ip2Scaled = filter1.process( ip2Scaled ).convertToFloatProcessor();
-				ip2Scaled = filter2.process( ip2Scaled ).convertToFloatProcessor();
+								positionField.transform() ) );
+				final FloatProcessor ip2Scaled = materialize(
+						createTransformedInterval(
+								ip2LevelSource,
+								new FinalInterval( ip2Level.getWidth(), ip2Level.getHeight() ),
+								createScaledPositionFieldTransform(
+										positionField,
+										scale ) ) );
+
+				SaturationToNoise.process( ip2Scaled );
 
 				ip2Stack.addSlice( "" + i, ip2Transformed );
 				impIp2Stack.setStack( ip2Stack );
@@ -1121,19 +983,12 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 				shiftXFloat.copyBits( inlierRatio, 0, 0, Blitter.DIVIDE );
 				shiftYFloat.copyBits( inlierRatio, 0, 0, Blitter.DIVIDE );
 
-				final RealTransformSequence transformSequence = new RealTransformSequence();
-				transformSequence.add( new Scale2D( scale, scale ) );
-				transformSequence.add( createDeformationFieldTransform(
-						shiftXFloat,
-						shiftYFloat ) );
-				transformSequence.add( new Scale2D( 1.0 / scale, 1.0 / scale ) );
-
-				xPositions = new RealTransformRandomAccessible<>(
-						xPositions,
-						transformSequence );
-				yPositions = new RealTransformRandomAccessible<>(
-						yPositions,
-						transformSequence );
+				positionField.addFirst(
+						new Scale2D( scale, scale ),
+						createDeformationFieldTransform(
+								shiftXFloat,
+								shiftYFloat ),
+						new Scale2D( 1.0 / scale, 1.0 / scale ) );
 
 				visualizeFlow( imp, seqR, seqOpticFlow, seqFlowVectors, filteredOpticFlow );
 	//			visualizeDeformation( ip2Scaled, seqR, seqOpticFlow, seqFlowVectors );
@@ -1141,51 +996,64 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			}
 		}
 
-		@SuppressWarnings( "unchecked" )
-		final PositionFieldTransform< DoubleType > transform = new PositionFieldTransform<>(
-				new RealRandomAccessible[]{
-						xPositions,
-						yPositions } );
+		final RealTransform transform = positionField.transform();
 
 		final FloatProcessor ip2Transformed = materialize(
 				createTransformedInterval(
-						ip2,
+						ip2Source,
 						new FinalInterval( ip2.getWidth(), ip2.getHeight() ),
 						transform ) );
 		ip2Stack.addSlice( "final", ip2Transformed );
 		impIp2Stack.setStack( ip2Stack );
 		impIp2Stack.updateAndDraw();
 
-		final RandomAccessibleInterval< DoubleType > xField =
-				Views.interval(
-						Views.raster(
-								createPositionField( transform, 0 ) ),
-						new FinalInterval( ip2.getWidth(), ip2.getHeight() ) );
-
-		final RandomAccessibleInterval< DoubleType > yField =
-				Views.interval(
-						Views.raster(
-								createPositionField( transform, 1 ) ),
-						new FinalInterval( ip2.getWidth(), ip2.getHeight() ) );
-
-		try
+		final String basePath = imp.getOriginalFileInfo().directory + imp.getOriginalFileInfo().fileName;
+		try ( final FlowPyramidWriter pyramid = new FlowPyramidWriter(
+				basePath,
+				ip2.getWidth(),
+				ip2.getHeight(),
+				FlowPyramidWriter.numLevels( ip2.getWidth(), ip2.getHeight(), 512 ),
+				maxDistance ) )
 		{
-//			writeDoubles( imp.getOriginalFileInfo().directory + "/dx.bin", Views.flatIterable( xField ) );
-//			writeDoubles( imp.getOriginalFileInfo().directory + "/dy.bin", Views.flatIterable( yField ) );
-			writeDoubles( imp.getOriginalFileInfo().directory + imp.getOriginalFileInfo().fileName + ".x.bin", Views.flatIterable( xField ) );
-			writeDoubles( imp.getOriginalFileInfo().directory + imp.getOriginalFileInfo().fileName + ".y.bin", Views.flatIterable( yField ) );
-
+			PositionFieldExporter.export(
+					transform,
+					ip2.getWidth(),
+					ip2.getHeight(),
+					basePath + ".x.bin",
+					basePath + ".y.bin",
+					pyramid );
 		}
 		catch ( final IOException e )
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			IJ.error( "Writing the position field to " + basePath + " failed, the files are incomplete: " + e.getMessage() );
+			return;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			IJ.error( "Writing the position field to " + basePath + " was interrupted, the files are incomplete." );
+			return;
 		}
 
 		IJ.log( "Done." );
 
 	}
 
+	/**
+	 * Color the displacements of a position field stored as two raw
+	 * big-endian double files.  Blocks of rows are read with positional reads
+	 * and colored in parallel, the displacement is the position minus the
+	 * pixel index, so only the colors and one block of positions and one
+	 * read buffer per worker thread are held in memory.
+	 *
+	 * @param width
+	 * @param height
+	 * @param xPath
+	 * @param yPath
+	 * @param max
+	 * @return
+	 * @throws IOException
+	 */
 	public static int[] visualizeDeformationField(
 			final int width,
 			final int height,
@@ -1193,45 +1061,53 @@ public class PMCCScaleSpaceBlockFlow implements PlugIn
 			final String yPath,
 			final double max ) throws IOException
 	{
-		final ArrayImg< DoubleType, ? > xField = ArrayImgs.doubles( width, height );
-		final ArrayImg< DoubleType, ? > yField = ArrayImgs.doubles( width, height );
-
-		readDoubles( xPath, xField );
-		readDoubles( yPath, yField );
-
-		final float[] xShiftsArray = new float[ width * height ];
-		final float[] yShiftsArray = new float[ width * height ];
-
-		final ArrayImg< FloatType, ? > xShifts = ArrayImgs.floats( xShiftsArray, width, height );
-		final ArrayImg< FloatType, ? > yShifts = ArrayImgs.floats( yShiftsArray, width, height );
-
-		final RandomAccessibleInterval< LongType > xFieldReference = Views.interval( new PositionRandomAccessible( 2, 0 ), xShifts );
-		final RandomAccessibleInterval< LongType > yFieldReference = Views.interval( new PositionRandomAccessible( 2, 1 ), yShifts );
-
-		Views.flatIterable(
-				Views.interval(
-						Views.pair(
-								Views.pair(
-										xFieldReference,
-										xField ),
-								xShifts ),
-						xShifts ) ).forEach(
-								pair -> pair.getB().set( ( float )pair.getA().getB().get() - pair.getA().getA().get() ) );
-		Views.flatIterable(
-				Views.interval(
-						Views.pair(
-								Views.pair(
-										yFieldReference,
-										yField ),
-								yShifts ),
-						yShifts ) ).forEach(
-								pair -> pair.getB().set( ( float )pair.getA().getB().get() - pair.getA().getA().get() ) );
-
-		System.out.println( "Loaded and converted transform fields" );
-
+		final int rowsPerBlock = Math.max( 1, PositionFieldIO.bufferSize / 8 / width );
+		final int numBlocks = ( height + rowsPerBlock - 1 ) / rowsPerBlock;
 		final int[] colors = new int[ width * height ];
 
-		algebraicToColor( xShiftsArray, yShiftsArray, colors, max );
+		try (
+				final FileChannel xChannel = FileChannel.open( Paths.get( xPath ), StandardOpenOption.READ );
+				final FileChannel yChannel = FileChannel.open( Paths.get( yPath ), StandardOpenOption.READ ) )
+		{
+			/* one buffer per worker, workers take every numWorkers-th block */
+			final int numWorkers = Math.min( numBlocks, Runtime.getRuntime().availableProcessors() );
+			IntStream.range( 0, numWorkers ).parallel().forEach(
+					worker -> {
+						final ByteBuffer buffer = ByteBuffer.allocateDirect( PositionFieldIO.bufferSize );
+						final double[] xs = new double[ rowsPerBlock * width ];
+						final double[] ys = new double[ rowsPerBlock * width ];
+						for ( int block = worker; block < numBlocks; block += numWorkers )
+						{
+							final int y0 = block * rowsPerBlock;
+							final int h = Math.min( rowsPerBlock, height - y0 );
+							final int n = h * width;
+							final long offset = ( long )y0 * width;
+							try
+							{
+								PositionFieldIO.readDoubles( xChannel, offset, xs, 0, n, buffer );
+								PositionFieldIO.readDoubles( yChannel, offset, ys, 0, n, buffer );
+							}
+							catch ( final IOException e )
+							{
+								throw new UncheckedIOException( e );
+							}
+							for ( int y = 0, i = 0; y < h; ++y )
+							{
+								final int yi = y0 + y;
+								for ( int x = 0; x < width; ++x, ++i )
+								{
+									xs[ i ] -= x;
+									ys[ i ] -= yi;
+								}
+							}
+							FlowColorWheel.algebraicToColor( xs, ys, colors, ( int )offset, max, n );
+						}
+					} );
+		}
+		catch ( final UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
 
 		return colors;
 	}
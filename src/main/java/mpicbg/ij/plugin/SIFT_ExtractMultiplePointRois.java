@@ -16,36 +16,35 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import mpicbg.ij.FeatureTransform;
+import mpicbg.ij.FeatureForest;
 import mpicbg.ij.SIFT;
 import mpicbg.ij.TransformMeshMapping;
+import mpicbg.ij.VoronoiRenderer;
 import mpicbg.ij.util.Util;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.AffineModel2D;
-import mpicbg.models.CoordinateTransformMesh;
-import mpicbg.models.GaussianMovingLeastSquaresTransform2;
 import mpicbg.models.HomographyModel2D;
 import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.MultiConsensusFilter;
 import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.ParallelCoordinateTransformMesh;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.RigidModel2D;
 import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TruncatedGaussianMovingLeastSquaresTransform2;
 import mpicbg.util.ColorStream;
 import mpicbg.util.Timer;
-import net.imglib2.Cursor;
-import net.imglib2.IterableInterval;
-import net.imglib2.KDTree;
 import net.imglib2.RealPoint;
 import net.imglib2.RealPointSampleList;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.neighborsearch.NearestNeighborSearch;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
-import net.imglib2.type.Type;
 import net.imglib2.type.numeric.ARGBType;
 
 /**
@@ -171,19 +170,13 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 //		}
 //	}
 
-	final static protected < T extends Type< T > > long drawNearestNeighbor(
-			final IterableInterval< T > target,
-			final NearestNeighborSearch< T > nnSearchSamples )
+	final static protected long drawNearestNeighbor(
+			final ColorProcessor target,
+			final RealPointSampleList< ARGBType > samples )
 	{
 		final Timer timer = new Timer();
 		timer.start();
-		final Cursor< T > c = target.localizingCursor();
-		while ( c.hasNext() )
-		{
-			c.fwd();
-			nnSearchSamples.search( c );
-			c.get().set( nnSearchSamples.getSampler().get() );
-		}
+		VoronoiRenderer.render( ( int[] )target.getPixels(), target.getWidth(), target.getHeight(), samples );
 		return timer.stop();
 	}
 
@@ -198,7 +191,7 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 
 	final protected ImageProcessor transform( final ImageProcessor ip, final Collection< PointMatch > matches )
 	{
-		final GaussianMovingLeastSquaresTransform2 t = new GaussianMovingLeastSquaresTransform2();
+		final TruncatedGaussianMovingLeastSquaresTransform2 t = new TruncatedGaussianMovingLeastSquaresTransform2();
 		try
 		{
 			t.setModel( AffineModel2D.class );
@@ -209,11 +202,11 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 		}
 		t.setAlpha( ip.getWidth() / 10 );
 
-		final TransformMeshMapping< CoordinateTransformMesh > mapping;
+		final TransformMeshMapping< ParallelCoordinateTransformMesh > mapping;
 		try
 		{
 			t.setMatches( matches );
-			mapping = new TransformMeshMapping< CoordinateTransformMesh >( new CoordinateTransformMesh( t, 128, ip.getWidth(), ip.getHeight() ) );
+			mapping = new TransformMeshMapping< ParallelCoordinateTransformMesh >( new ParallelCoordinateTransformMesh( t::copy, 128, ip.getWidth(), ip.getHeight() ) );
 		}
 		catch ( final NotEnoughDataPointsException e )
 		{
@@ -228,7 +221,7 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 
 		final ImageProcessor ip2 = ip.createProcessor( ip.getWidth(), ip.getHeight() );
 		ip.setInterpolationMethod( ImageProcessor.BILINEAR );
-		mapping.mapInterpolated( ip, ip2 );
+		mapping.mapInterpolated( ip, ip2, Runtime.getRuntime().availableProcessors() );
 
 		return ip2;
 	}
@@ -306,28 +299,60 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 		run();
 	}
 
+	/**
+	 * Extract features with a separate SIFT instance, so that several images
+	 * can be processed concurrently.
+	 *
+	 * @param ip
+	 * @param features
+	 * @return time in ms
+	 */
+	final static protected long extractFeatures( final ImageProcessor ip, final Collection< Feature > features )
+	{
+		final Timer timer = new Timer();
+		timer.start();
+		new SIFT( new FloatArray2DSIFT( p.sift ) ).extractFeatures( ip, features );
+		return timer.stop();
+	}
+
 	public void run()
 	{
-		final FloatArray2DSIFT sift = new FloatArray2DSIFT( p.sift );
-		final SIFT ijSIFT = new SIFT( sift );
-
-		long start_time = System.currentTimeMillis();
-		IJ.log( "Processing SIFT ..." );
-		ijSIFT.extractFeatures( imp1.getProcessor(), fs1 );
-		IJ.log( " took " + ( System.currentTimeMillis() - start_time ) + "ms." );
-		IJ.log( fs1.size() + " features extracted." );
-
-		start_time = System.currentTimeMillis();
-		IJ.log( "Processing SIFT ..." );
-		ijSIFT.extractFeatures( imp2.getProcessor(), fs2 );
-		IJ.log( " took " + ( System.currentTimeMillis() - start_time ) + "ms." );
-		IJ.log( fs2.size() + " features extracted." );
-
-		start_time = System.currentTimeMillis();
-		IJ.log( "Identifying correspondence candidates using brute force ..." );
+		final Timer timer = new Timer();
+
+		timer.start();
+		IJ.log( "Processing SIFT for both images concurrently ..." );
+		final ExecutorService exec = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			final Future< Long > time1 = exec.submit( () -> extractFeatures( imp1.getProcessor(), fs1 ) );
+			final Future< Long > time2 = exec.submit( () -> extractFeatures( imp2.getProcessor(), fs2 ) );
+			IJ.log( " image 1 took " + time1.get() + "ms, " + fs1.size() + " features extracted." );
+			IJ.log( " image 2 took " + time2.get() + "ms, " + fs2.size() + " features extracted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			exec.shutdownNow();
+			IJ.error( "SIFT extraction failed: " + e.getCause() );
+			return;
+		}
+		catch ( final InterruptedException e )
+		{
+			exec.shutdownNow();
+			Thread.currentThread().interrupt();
+			IJ.error( "SIFT extraction was interrupted." );
+			return;
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+		IJ.log( " took " + timer.stop() + "ms." );
+
+		timer.start();
+		IJ.log( "Identifying correspondence candidates using a randomized kd-forest ..." );
 		final List< PointMatch > candidates = new ArrayList< PointMatch >();
-		FeatureTransform.matchFeatures( fs1, fs2, candidates, p.rod );
-		IJ.log( " took " + ( System.currentTimeMillis() - start_time ) + "ms." );
+		FeatureForest.matchFeatures( fs1, fs2, candidates, p.rod );
+		IJ.log( " took " + timer.stop() + "ms." );
 
 		final RoiManager roiManager = RoiManager.getInstance() == null ? new RoiManager() : RoiManager.getInstance();
 		final Overlay overlay1 = new Overlay();
@@ -342,8 +367,6 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 		{
 			IJ.log( candidates.size() + " potentially corresponding features identified." );
 
-			final List< PointMatch > inliers = new ArrayList< PointMatch >();
-
 			AbstractModel< ? > model;
 			switch ( p.modelIndex )
 			{
@@ -369,31 +392,29 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 			final RealPointSampleList< ARGBType > pl1 = new RealPointSampleList< ARGBType >( 2 );
 			final RealPointSampleList< ARGBType > pl2 = new RealPointSampleList< ARGBType >( 2 );
 
-			boolean modelFound = true;
+			final MultiConsensusFilter consensusFilter = new MultiConsensusFilter(
+					candidates,
+					model,
+					1000,
+					p.maxEpsilon,
+					p.minInlierRatio,
+					p.minNumInliers,
+					p.minNumInliers );
+
+			MultiConsensusFilter.Consensus consensus;
 			do
 			{
-				start_time = System.currentTimeMillis();
+				timer.start();
 				IJ.log( "Filtering correspondence candidates by geometric consensus ..." );
 
-				try
-				{
-					modelFound = model.filterRansac(
-							candidates,
-							inliers,
-							1000,
-							p.maxEpsilon,
-							p.minInlierRatio,
-							p.minNumInliers );
-				}
-				catch ( final NotEnoughDataPointsException e )
-				{
-					modelFound = false;
-				}
+				consensus = consensusFilter.next();
 
-				IJ.log( " took " + ( System.currentTimeMillis() - start_time ) + "ms." );
+				IJ.log( " took " + timer.stop() + "ms." );
 
-				if ( modelFound )
+				if ( consensus != null )
 				{
+					final List< PointMatch > inliers = consensus.getInliers();
+
 					final float x1[] = new float[ inliers.size() ];
 					final float y1[] = new float[ inliers.size() ];
 					final float x2[] = new float[ inliers.size() ];
@@ -430,8 +451,6 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 					roiManager.add( imp1, pr1, 0 );
 					roiManager.add( imp2, pr2, 0 );
 
-					candidates.removeAll( inliers );
-
 					final ArrayList< Point > points1 = new ArrayList< Point >();
 					final ArrayList< Point > points2 = new ArrayList< Point >();
 					PointMatch.sourcePoints( inliers, points1 );
@@ -441,14 +460,14 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 					colorPoints( points2, pl2, color );
 
 					IJ.log( inliers.size() + " corresponding features with an average displacement of " + String.format( "%.3f", PointMatch.meanDistance( inliers ) ) + "px identified." );
-					IJ.log( "Estimated transformation model: " + model );
+					IJ.log( "Estimated transformation model: " + consensus.getModel() );
 				}
 				else
 				{
 					IJ.log( "No more correspondences found." );
 				}
 			}
-			while ( modelFound );
+			while ( consensus != null );
 
 			if ( allInliers.size() > 0 )
 			{
@@ -457,12 +476,8 @@ public class SIFT_ExtractMultiplePointRois implements PlugIn
 				imp1.updateAndDraw();
 				imp2.updateAndDraw();
 
-				drawNearestNeighbor(
-						ArrayImgs.argbs( ( int[] )ipVis1.getPixels(), imp1.getWidth(), imp1.getHeight() ),
-						new NearestNeighborSearchOnKDTree< ARGBType >( new KDTree< ARGBType >( pl1 ) ) );
-				drawNearestNeighbor(
-						ArrayImgs.argbs( ( int[] )ipVis2.getPixels(), imp2.getWidth(), imp2.getHeight() ),
-						new NearestNeighborSearchOnKDTree< ARGBType >( new KDTree< ARGBType >( pl2 ) ) );
+				drawNearestNeighbor( ipVis1, pl1 );
+				drawNearestNeighbor( ipVis2, pl2 );
 
 				new ImagePlus( imp1.getTitle() + " consensus sets", ipVis1 ).show();
 				new ImagePlus( imp2.getTitle() + " consensus sets", ipVis2 ).show();
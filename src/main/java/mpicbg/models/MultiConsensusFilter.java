@@ -0,0 +1,355 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Extracts one consensus set after the other from a set of candidate
+ * {@link PointMatch PointMatches}, like repeated calls to
+ * {@link AbstractModel#filterRansac(List, java.util.Collection, int, double, double, int)}
+ * followed by removing the inliers from the candidates.
+ *
+ * The remaining candidates are kept as an index set with O(1) removal.
+ * Their coordinates are copied into arrays once.  The RANSAC hypotheses of
+ * each round are drawn and scored in parallel, each block of hypotheses with
+ * its own model copy and random generator.  The best hypothesis is refined
+ * on its inliers until the inlier set is stable.  It is then filtered
+ * robustly by removing matches with a residual above {@value #maxTrust}
+ * times the median.  Extraction stops when no more model is found or when
+ * fewer than <code>minNumRemaining</code> candidates are left.
+ */
+public class MultiConsensusFilter
+{
+	final static public double maxTrust = 4.0;
+	final static private int hypothesesPerBlock = 64;
+	final static private int maxRefinements = 10;
+
+	/**
+	 * A model and its inliers.
+	 */
+	final static public class Consensus
+	{
+		final private Model< ? > model;
+		final private ArrayList< PointMatch > inliers;
+
+		private Consensus( final Model< ? > model, final ArrayList< PointMatch > inliers )
+		{
+			this.model = model;
+			this.inliers = inliers;
+		}
+
+		public Model< ? > getModel()
+		{
+			return model;
+		}
+
+		public ArrayList< PointMatch > getInliers()
+		{
+			return inliers;
+		}
+	}
+
+	/**
+	 * The best hypothesis of a block.
+	 */
+	final static private class Hypothesis
+	{
+		final Model< ? > model;
+		final int numInliers;
+		final double cost;
+
+		Hypothesis( final Model< ? > model, final int numInliers, final double cost )
+		{
+			this.model = model;
+			this.numInliers = numInliers;
+			this.cost = cost;
+		}
+
+		boolean isBetterThan( final Hypothesis other )
+		{
+			return other == null || numInliers > other.numInliers || ( numInliers == other.numInliers && cost < other.cost );
+		}
+	}
+
+	final private List< PointMatch > candidates;
+	final private Model< ? > model;
+	final private int iterations;
+	final private double epsilon2;
+	final private double minInlierRatio;
+	final private int minNumInliers;
+	final private int minNumRemaining;
+
+	/* source and target coordinates of all candidates */
+	final private double[][] p;
+	final private double[][] q;
+
+	/* remaining candidates in active[0, size), position of each candidate in active */
+	final private int[] active;
+	final private int[] position;
+	private int size;
+
+	private long seed = 0;
+
+	/**
+	 * @param candidates
+	 * @param model the model template, not modified
+	 * @param iterations number of RANSAC hypotheses per consensus set
+	 * @param epsilon maximal residual of an inlier
+	 * @param minInlierRatio minimal ratio of inliers to remaining candidates
+	 * @param minNumInliers
+	 * @param minNumRemaining stop when fewer candidates remain
+	 */
+	public MultiConsensusFilter(
+			final List< PointMatch > candidates,
+			final Model< ? > model,
+			final int iterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final int minNumRemaining )
+	{
+		this.candidates = candidates;
+		this.model = model;
+		this.iterations = iterations;
+		this.epsilon2 = epsilon * epsilon;
+		this.minInlierRatio = minInlierRatio;
+		this.minNumInliers = minNumInliers;
+		this.minNumRemaining = Math.max( minNumRemaining, Math.max( minNumInliers, model.getMinNumMatches() ) );
+
+		final int n = candidates.size();
+		p = new double[ n ][];
+		q = new double[ n ][];
+		active = new int[ n ];
+		position = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final PointMatch match = candidates.get( i );
+			p[ i ] = match.getP1().getL().clone();
+			q[ i ] = match.getP2().getW().clone();
+			active[ i ] = i;
+			position[ i ] = i;
+		}
+		size = n;
+	}
+
+	public int numRemaining()
+	{
+		return size;
+	}
+
+	private void remove( final int i )
+	{
+		final int k = position[ i ];
+		final int last = active[ --size ];
+		active[ k ] = last;
+		position[ last ] = k;
+		active[ size ] = i;
+		position[ i ] = size;
+	}
+
+	private double residual2( final Model< ? > hypothesis, final int i, final double[] scratch )
+	{
+		System.arraycopy( p[ i ], 0, scratch, 0, scratch.length );
+		hypothesis.applyInPlace( scratch );
+		double d = 0;
+		for ( int k = 0; k < scratch.length; ++k )
+		{
+			final double x = scratch[ k ] - q[ i ][ k ];
+			d += x * x;
+		}
+		return d;
+	}
+
+	/**
+	 * Score a hypothesis on all remaining candidates.
+	 */
+	private Hypothesis score( final Model< ? > hypothesis, final double[] scratch )
+	{
+		int numInliers = 0;
+		double cost = 0;
+		for ( int k = 0; k < size; ++k )
+		{
+			final double d = residual2( hypothesis, active[ k ], scratch );
+			if ( d < epsilon2 )
+			{
+				++numInliers;
+				cost += d;
+			}
+		}
+		return new Hypothesis( hypothesis, numInliers, cost );
+	}
+
+	private ArrayList< Integer > inliers( final Model< ? > hypothesis, final double[] scratch )
+	{
+		final ArrayList< Integer > inliers = new ArrayList< Integer >();
+		for ( int k = 0; k < size; ++k )
+		{
+			final int i = active[ k ];
+			if ( residual2( hypothesis, i, scratch ) < epsilon2 )
+				inliers.add( i );
+		}
+		return inliers;
+	}
+
+	private ArrayList< PointMatch > matches( final List< Integer > indices )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( indices.size() );
+		for ( final int i : indices )
+			matches.add( candidates.get( i ) );
+		return matches;
+	}
+
+	/**
+	 * Draw and score a block of hypotheses.
+	 */
+	private Hypothesis ransacBlock( final int numHypotheses, final long blockSeed )
+	{
+		final Random rnd = new Random( blockSeed );
+		final Model< ? > hypothesis = model.copy();
+		final int numSamples = model.getMinNumMatches();
+		final int[] samples = new int[ numSamples ];
+		final ArrayList< PointMatch > sampleMatches = new ArrayList< PointMatch >( numSamples );
+		final double[] scratch = new double[ p[ 0 ].length ];
+
+		Hypothesis best = null;
+		for ( int h = 0; h < numHypotheses; ++h )
+		{
+			sampleMatches.clear();
+			for ( int s = 0; s < numSamples; ++s )
+			{
+				int i;
+				boolean drawn;
+				do
+				{
+					i = active[ rnd.nextInt( size ) ];
+					drawn = false;
+					for ( int t = 0; t < s; ++t )
+						drawn |= samples[ t ] == i;
+				}
+				while ( drawn );
+				samples[ s ] = i;
+				sampleMatches.add( candidates.get( i ) );
+			}
+
+			try
+			{
+				hypothesis.fit( sampleMatches );
+			}
+			catch ( final NotEnoughDataPointsException | IllDefinedDataPointsException e )
+			{
+				continue;
+			}
+
+			final Hypothesis scored = score( hypothesis, scratch );
+			if ( scored.isBetterThan( best ) )
+				best = new Hypothesis( hypothesis.copy(), scored.numInliers, scored.cost );
+		}
+		return best;
+	}
+
+	/**
+	 * Extract the next consensus set and remove it from the remaining
+	 * candidates.
+	 *
+	 * @return the consensus set or null if no more model was found
+	 */
+	public Consensus next()
+	{
+		if ( size < minNumRemaining || size < model.getMinNumMatches() )
+			return null;
+
+		/* parallel hypotheses */
+		final int numBlocks = ( iterations + hypothesesPerBlock - 1 ) / hypothesesPerBlock;
+		final long roundSeed = seed++;
+		final Hypothesis[] blocks = new Hypothesis[ numBlocks ];
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				b -> blocks[ b ] = ransacBlock(
+						Math.min( hypothesesPerBlock, iterations - b * hypothesesPerBlock ),
+						roundSeed * numBlocks + b ) );
+		Hypothesis best = null;
+		for ( final Hypothesis block : blocks )
+			if ( block != null && block.isBetterThan( best ) )
+				best = block;
+		if ( best == null || best.numInliers < minNumInliers || best.numInliers < minInlierRatio * size )
+			return null;
+
+		/* refine on the inliers until stable */
+		final Model< ? > refined = best.model;
+		final double[] scratch = new double[ p[ 0 ].length ];
+		ArrayList< Integer > inliers = inliers( refined, scratch );
+		for ( int r = 0; r < maxRefinements; ++r )
+		{
+			try
+			{
+				refined.fit( matches( inliers ) );
+			}
+			catch ( final NotEnoughDataPointsException | IllDefinedDataPointsException e )
+			{
+				return null;
+			}
+			final ArrayList< Integer > refinedInliers = inliers( refined, scratch );
+			final boolean stable = refinedInliers.size() <= inliers.size();
+			inliers = refinedInliers;
+			if ( stable )
+				break;
+		}
+		if ( inliers.size() < minNumInliers || inliers.size() < minInlierRatio * size )
+			return null;
+
+		/* robust filter: drop residuals above maxTrust times the median */
+		int numInliers;
+		do
+		{
+			numInliers = inliers.size();
+			try
+			{
+				refined.fit( matches( inliers ) );
+			}
+			catch ( final NotEnoughDataPointsException | IllDefinedDataPointsException e )
+			{
+				return null;
+			}
+			final double[] residuals = new double[ numInliers ];
+			for ( int k = 0; k < numInliers; ++k )
+				residuals[ k ] = Math.sqrt( residual2( refined, inliers.get( k ), scratch ) );
+			final double[] sorted = residuals.clone();
+			Arrays.sort( sorted );
+			final double median = sorted[ numInliers / 2 ];
+			final ArrayList< Integer > filtered = new ArrayList< Integer >( numInliers );
+			for ( int k = 0; k < numInliers; ++k )
+				if ( residuals[ k ] <= maxTrust * median )
+					filtered.add( inliers.get( k ) );
+			inliers = filtered;
+		}
+		while ( inliers.size() < numInliers && inliers.size() >= minNumInliers );
+		if ( inliers.size() < minNumInliers )
+			return null;
+
+		final ArrayList< PointMatch > matches = matches( inliers );
+		for ( final PointMatch match : matches )
+			match.apply( refined );
+		for ( final int i : inliers )
+			remove( i );
+
+		return new Consensus( refined, matches );
+	}
+}
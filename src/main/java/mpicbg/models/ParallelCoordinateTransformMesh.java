@@ -0,0 +1,78 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.models;
+
+import java.util.ArrayList;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * A {@link CoordinateTransformMesh} whose vertices are transformed
+ * concurrently.  The vertices are split into one block per core, and each
+ * block is transformed by its own {@link CoordinateTransform} from a
+ * {@link Supplier}, so transforms that are not thread safe can be used
+ * through a supplier of copies.  The affines of the triangles are then
+ * fitted concurrently as well.
+ */
+public class ParallelCoordinateTransformMesh extends TransformMesh
+{
+	private static final long serialVersionUID = 5148386839823736412L;
+
+	/**
+	 * @param transforms supplies one transform per block of vertices
+	 * @param numX
+	 * @param width
+	 * @param height
+	 */
+	public ParallelCoordinateTransformMesh(
+			final Supplier< ? extends CoordinateTransform > transforms,
+			final int numX,
+			final double width,
+			final double height )
+	{
+		super( numX, numY( numX, width, height ), width, height );
+
+		final ArrayList< PointMatch > vertices = new ArrayList< PointMatch >( va.keySet() );
+		final int n = vertices.size();
+		final int numBlocks = Math.max( 1, Math.min( n, Runtime.getRuntime().availableProcessors() ) );
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				b -> {
+					final CoordinateTransform t = transforms.get();
+					final int to = ( int )( ( long )( b + 1 ) * n / numBlocks );
+					for ( int i = ( int )( ( long )b * n / numBlocks ); i < to; ++i )
+						vertices.get( i ).getP2().apply( t );
+				} );
+
+		new ArrayList< AffineModel2D >( av.keySet() ).parallelStream().forEach( this::updateAffine );
+	}
+
+	/**
+	 * @param t a transform that can be applied concurrently, it is shared
+	 *     by all threads; pass a {@link Supplier} of copies otherwise
+	 * @param numX
+	 * @param width
+	 * @param height
+	 */
+	public ParallelCoordinateTransformMesh(
+			final CoordinateTransform t,
+			final int numX,
+			final double width,
+			final double height )
+	{
+		this( () -> t, numX, width, height );
+	}
+}
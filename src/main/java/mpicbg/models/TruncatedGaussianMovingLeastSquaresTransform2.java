@@ -0,0 +1,287 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+
+/**
+ * A {@link GaussianMovingLeastSquaresTransform2} that fits the local model
+ * only to landmarks within <code>cutoff * alpha</code> of the location.
+ * The landmarks are found by radius search in a {@link KDTree} that is
+ * built once per set of matches, so the cost per location is O(k) in the
+ * number of neighbors instead of O(n) in the number of landmarks.  Weights,
+ * landmark copies and the local model are per-thread buffers, so the
+ * transform can be applied concurrently once the matches are set.  Where
+ * fewer landmarks than required by the model are within the cutoff, or
+ * where they are degenerate, all landmarks are used.
+ */
+public class TruncatedGaussianMovingLeastSquaresTransform2 extends GaussianMovingLeastSquaresTransform2
+{
+	private static final long serialVersionUID = -1580373567240584419L;
+
+	/**
+	 * The landmark tree of one set of matches.
+	 */
+	private static class Landmarks
+	{
+		final float[][] p;
+		final KDTree< Integer > tree;
+
+		Landmarks( final float[][] p, final KDTree< Integer > tree )
+		{
+			this.p = p;
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * Per-thread search, model and buffers.
+	 */
+	private static class Scratch
+	{
+		KDTree< Integer > tree = null;
+		RadiusNeighborSearchOnKDTree< Integer > search = null;
+		Model< ? > source = null;
+		Model< ? > model = null;
+		RealPoint location = null;
+		float[][] pp = new float[ 0 ][];
+		float[][] qq = new float[ 0 ][];
+		float[] ww = new float[ 0 ];
+		/* weights of all landmarks for the fallback */
+		float[] wAll = new float[ 0 ];
+		/* number of leading weights that may be non-zero */
+		int used = 0;
+
+		/**
+		 * Make buffers for between k and 2k landmarks available, so that a
+		 * fit over the zero weighted tail stays O(k).
+		 */
+		void ensure( final int n, final int k )
+		{
+			if ( pp.length != n || ww.length < k || ww.length > 2 * k )
+			{
+				pp = new float[ n ][ k ];
+				qq = new float[ n ][ k ];
+				ww = new float[ k ];
+				used = 0;
+			}
+		}
+	}
+
+	/** cutoff radius in multiples of alpha */
+	protected double cutoff = 3.0;
+
+	transient private volatile Landmarks landmarks = null;
+	transient private volatile ThreadLocal< Scratch > scratch = ThreadLocal.withInitial( Scratch::new );
+
+	public double getCutoff()
+	{
+		return cutoff;
+	}
+
+	public void setCutoff( final double cutoff )
+	{
+		this.cutoff = cutoff;
+	}
+
+	private KDTree< Integer > buildTree()
+	{
+		final int n = p.length;
+		final int l = w.length;
+		final ArrayList< Integer > indices = new ArrayList< Integer >( l );
+		final ArrayList< RealPoint > points = new ArrayList< RealPoint >( l );
+		for ( int i = 0; i < l; ++i )
+		{
+			final double[] position = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+				position[ d ] = p[ d ][ i ];
+			indices.add( i );
+			points.add( new RealPoint( position ) );
+		}
+		return new KDTree< Integer >( indices, points );
+	}
+
+	/**
+	 * The landmark tree of the current matches.  It is built in
+	 * {@link #setMatches(Collection)}, so the lock is taken only after
+	 * deserialization or when the matches were replaced otherwise.
+	 */
+	private KDTree< Integer > tree()
+	{
+		Landmarks l = landmarks;
+		if ( l == null || l.p != p )
+		{
+			synchronized ( this )
+			{
+				l = landmarks;
+				if ( l == null || l.p != p )
+				{
+					l = new Landmarks( p, buildTree() );
+					landmarks = l;
+				}
+			}
+		}
+		return l.tree;
+	}
+
+	private Scratch scratch()
+	{
+		ThreadLocal< Scratch > s = scratch;
+		if ( s == null )
+		{
+			synchronized ( this )
+			{
+				s = scratch;
+				if ( s == null )
+				{
+					s = ThreadLocal.withInitial( Scratch::new );
+					scratch = s;
+				}
+			}
+		}
+		return s.get();
+	}
+
+	@Override
+	public void setMatches( final Collection< PointMatch > matches )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		super.setMatches( matches );
+		landmarks = new Landmarks( p, buildTree() );
+	}
+
+	/**
+	 * @return a copy with its own model that shares the landmarks and
+	 *     their tree
+	 */
+	public TruncatedGaussianMovingLeastSquaresTransform2 copy()
+	{
+		final TruncatedGaussianMovingLeastSquaresTransform2 copy = new TruncatedGaussianMovingLeastSquaresTransform2();
+		copy.model = model.copy();
+		copy.alpha = alpha;
+		copy.cutoff = cutoff;
+		copy.p = p;
+		copy.q = q;
+		copy.w = w;
+		copy.landmarks = landmarks;
+		return copy;
+	}
+
+	/**
+	 * Fit the per-thread model to all landmarks.
+	 */
+	private void applyAllInPlace( final double[] location, final Scratch s )
+	{
+		final int l = w.length;
+		if ( s.wAll.length != l )
+			s.wAll = new float[ l ];
+		final double var2 = 2 * alpha * alpha;
+		for ( int i = 0; i < l; ++i )
+		{
+			double d2 = 0;
+			for ( int d = 0; d < location.length; ++d )
+			{
+				final double dx = p[ d ][ i ] - location[ d ];
+				d2 += dx * dx;
+			}
+			if ( d2 <= 0 )
+			{
+				for ( int d = 0; d < location.length; ++d )
+					location[ d ] = q[ d ][ i ];
+				return;
+			}
+			s.wAll[ i ] = w[ i ] * ( float )gaussianWeigh( d2, var2 );
+		}
+
+		try
+		{
+			s.model.fit( p, q, s.wAll );
+			s.model.applyInPlace( location );
+		}
+		catch ( final IllDefinedDataPointsException e ){}
+		catch ( final NotEnoughDataPointsException e ){}
+	}
+
+	@Override
+	public void applyInPlace( final double[] location )
+	{
+		final KDTree< Integer > tree = tree();
+		final Scratch s = scratch();
+		if ( s.tree != tree )
+		{
+			s.tree = tree;
+			s.search = new RadiusNeighborSearchOnKDTree< Integer >( tree );
+			s.location = new RealPoint( location.length );
+		}
+		if ( s.source != model )
+		{
+			s.source = model;
+			s.model = model.copy();
+		}
+
+		s.location.setPosition( location );
+		s.search.search( s.location, cutoff * alpha, false );
+		final int k = s.search.numNeighbors();
+		if ( k < model.getMinNumMatches() )
+		{
+			applyAllInPlace( location, s );
+			return;
+		}
+
+		s.ensure( location.length, k );
+		final double var2 = 2 * alpha * alpha;
+		for ( int j = 0; j < k; ++j )
+		{
+			final int i = s.search.getSampler( j ).get();
+			final double d2 = s.search.getSquareDistance( j );
+			if ( d2 <= 0 )
+			{
+				for ( int d = 0; d < location.length; ++d )
+					location[ d ] = q[ d ][ i ];
+				return;
+			}
+			for ( int d = 0; d < location.length; ++d )
+			{
+				s.pp[ d ][ j ] = p[ d ][ i ];
+				s.qq[ d ][ j ] = q[ d ][ i ];
+			}
+			s.ww[ j ] = w[ i ] * ( float )gaussianWeigh( d2, var2 );
+		}
+		for ( int j = k; j < s.used; ++j )
+			s.ww[ j ] = 0;
+		s.used = k;
+
+		try
+		{
+			s.model.fit( s.pp, s.qq, s.ww );
+			s.model.applyInPlace( location );
+		}
+		catch ( final IllDefinedDataPointsException e )
+		{
+			applyAllInPlace( location, s );
+		}
+		catch ( final NotEnoughDataPointsException e )
+		{
+			applyAllInPlace( location, s );
+		}
+	}
+}
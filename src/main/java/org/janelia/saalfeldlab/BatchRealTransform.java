@@ -0,0 +1,91 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * A {@link RealTransform} that can be applied to many points at once.
+ * Points are passed as structure of arrays, i.e. <code>source[d][i]</code>
+ * is coordinate <em>d</em> of point <em>i</em>, so that implementations
+ * can process whole rows or blocks in tight, vectorizable loops.
+ */
+public interface BatchRealTransform extends RealTransform
+{
+	/**
+	 * Apply to the first n points of source and store the results in target.
+	 * The arrays of target must not be the arrays of source.
+	 *
+	 * @param source one array per source dimension
+	 * @param target one array per target dimension
+	 * @param n
+	 */
+	public void apply( final double[][] source, final double[][] target, final int n );
+
+	/**
+	 * Apply any {@link RealTransform} to n points.  Uses the batch
+	 * implementation of {@link BatchRealTransform BatchRealTransforms}, a
+	 * matrix multiplication for {@link AffineGet affines}, and applies all
+	 * other transforms point by point.  The arrays of target must not be
+	 * the arrays of source.
+	 *
+	 * @param transform
+	 * @param source one array per source dimension
+	 * @param target one array per target dimension
+	 * @param n
+	 */
+	public static void apply( final RealTransform transform, final double[][] source, final double[][] target, final int n )
+	{
+		if ( transform instanceof BatchRealTransform )
+			( ( BatchRealTransform )transform ).apply( source, target, n );
+		else if ( transform instanceof AffineGet )
+		{
+			final AffineGet affine = ( AffineGet )transform;
+			final int numDimensions = affine.numSourceDimensions();
+			for ( int r = 0; r < numDimensions; ++r )
+			{
+				final double[] t = target[ r ];
+				final double translation = affine.get( r, numDimensions );
+				for ( int i = 0; i < n; ++i )
+					t[ i ] = translation;
+				for ( int c = 0; c < numDimensions; ++c )
+				{
+					final double m = affine.get( r, c );
+					if ( m == 0 )
+						continue;
+					final double[] s = source[ c ];
+					for ( int i = 0; i < n; ++i )
+						t[ i ] += m * s[ i ];
+				}
+			}
+		}
+		else
+		{
+			final double[] s = new double[ transform.numSourceDimensions() ];
+			final double[] t = new double[ transform.numTargetDimensions() ];
+			for ( int i = 0; i < n; ++i )
+			{
+				for ( int d = 0; d < s.length; ++d )
+					s[ d ] = source[ d ][ i ];
+				transform.apply( s, t );
+				for ( int d = 0; d < t.length; ++d )
+					target[ d ][ i ] = t[ d ];
+			}
+		}
+	}
+}
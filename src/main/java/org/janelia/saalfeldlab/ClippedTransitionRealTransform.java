@@ -34,6 +34,8 @@
 
 package org.janelia.saalfeldlab;
 
+import java.util.Arrays;
+
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPositionable;
 import net.imglib2.realtransform.RealTransform;
@@ -47,15 +49,21 @@ import net.imglib2.realtransform.RealTransform;
  * The transition is clipped beyond the transition interval, i.e. not linearly
  * extrapolated.
  *
+ * Blocks of points are transformed with one interpolation lambda per point
+ * computed in a single loop.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
-public class ClippedTransitionRealTransform implements RealTransform
+public class ClippedTransitionRealTransform implements BatchRealTransform
 {
 	private final InterpolatedRealTransform interpolant;
 	private final double transitionOffset;
 	private final double transitionScale;
 	private final int maxN;
 
+	/* batch buffer, grown on demand */
+	private double[] lambdas = new double[ 0 ];
+
 	private ClippedTransitionRealTransform(
 			final InterpolatedRealTransform interpolant,
 			final double transitionOffset,
@@ -76,6 +84,17 @@ public class ClippedTransitionRealTransform implements RealTransform
 		this( new InterpolatedRealTransform( a, b, 1.0 ), min, 1.0 / ( max - min ) );
 	}
 
+	/**
+	 * The interpolant between a and b.  Not thread safe, use a
+	 * {@link #copy()} per thread.
+	 *
+	 * @return
+	 */
+	public InterpolatedRealTransform getInterpolant()
+	{
+		return interpolant;
+	}
+
 	@Override
 	public int numSourceDimensions()
 	{
@@ -88,7 +107,16 @@ public class ClippedTransitionRealTransform implements RealTransform
 		return numSourceDimensions();
 	}
 
-	private final double lambda( final double position )
+	/**
+	 * The weight of transform a at a position along the transition
+	 * dimension.  Renderers that process whole planes of constant position
+	 * can compute it once per plane and use the {@link #getInterpolant()
+	 * interpolant} directly.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public double lambda( final double position )
 	{
 		return Math.max( 0.0, Math.min( 1.0, 1.0 - ( position - transitionOffset ) * transitionScale ) );
 	}
@@ -118,6 +146,24 @@ public class ClippedTransitionRealTransform implements RealTransform
 		target.setPosition( z, maxN );
 	}
 
+	@Override
+	public void apply( final double[][] source, final double[][] target, final int n )
+	{
+		if ( lambdas.length < n )
+			lambdas = new double[ n ];
+
+		final double[] z = source[ maxN ];
+		for ( int i = 0; i < n; ++i )
+			lambdas[ i ] = lambda( z[ i ] );
+
+		interpolant.apply(
+				Arrays.copyOf( source, maxN ),
+				Arrays.copyOf( target, maxN ),
+				lambdas,
+				n );
+		System.arraycopy( z, 0, target[ maxN ], 0, n );
+	}
+
 	@Override
 	public ClippedTransitionRealTransform copy()
 	{
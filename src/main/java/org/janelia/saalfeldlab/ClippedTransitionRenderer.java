@@ -0,0 +1,139 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import net.imglib2.Interval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Renders a 3D volume through a {@link ClippedTransitionRealTransform} in
+ * parallel.  The volume is split into slabs of z-planes that are rendered
+ * concurrently, each by a worker with its own {@link
+ * ClippedTransitionRealTransform#copy() copy} of the transform.  Lambda is
+ * constant within a plane, so it is computed once per plane and the
+ * interpolant is applied to whole rows.
+ */
+public class ClippedTransitionRenderer
+{
+	private ClippedTransitionRenderer() {}
+
+	/**
+	 * Render planes [z0, z1) of the target interval into stack.
+	 */
+	private static void renderSlab(
+			final RealRandomAccessible< FloatType > source,
+			final ClippedTransitionRealTransform transform,
+			final Interval interval,
+			final ImageStack stack,
+			final int z0,
+			final int z1 )
+	{
+		final InterpolatedRealTransform interpolant = transform.getInterpolant();
+		final RealRandomAccess< FloatType > access = source.realRandomAccess();
+
+		final int width = ( int )interval.dimension( 0 );
+		final int height = ( int )interval.dimension( 1 );
+		final double[][] p = new double[ 2 ][ width ];
+		final double[][] q = new double[ 2 ][ width ];
+		for ( int x = 0; x < width; ++x )
+			p[ 0 ][ x ] = interval.min( 0 ) + x;
+
+		for ( int z = z0; z < z1; ++z )
+		{
+			final double zPosition = interval.min( 2 ) + z;
+			interpolant.setLambda( transform.lambda( zPosition ) );
+			access.setPosition( zPosition, 2 );
+
+			final float[] pixels = ( float[] )stack.getPixels( z + 1 );
+			for ( int y = 0, i = 0; y < height; ++y )
+			{
+				Arrays.fill( p[ 1 ], interval.min( 1 ) + y );
+				interpolant.apply( p, q, width );
+				for ( int x = 0; x < width; ++x, ++i )
+				{
+					access.setPosition( q[ 0 ][ x ], 0 );
+					access.setPosition( q[ 1 ][ x ], 1 );
+					pixels[ i ] = access.get().get();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render a 3D source through a transform.
+	 *
+	 * @param source 3D source
+	 * @param transform maps target coordinates into the source
+	 * @param interval 3D target interval
+	 * @param slabDepth number of z-planes per task
+	 * @return one {@link FloatProcessor} per z-plane
+	 */
+	public static ImageStack render(
+			final RealRandomAccessible< FloatType > source,
+			final ClippedTransitionRealTransform transform,
+			final Interval interval,
+			final int slabDepth )
+	{
+		final int width = ( int )interval.dimension( 0 );
+		final int height = ( int )interval.dimension( 1 );
+		final int depth = ( int )interval.dimension( 2 );
+
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; ++z )
+			stack.addSlice( "" + ( interval.min( 2 ) + z ), new FloatProcessor( width, height ) );
+
+		/* copy sequentially, copying is not guaranteed to be thread safe */
+		final int numSlabs = ( depth + slabDepth - 1 ) / slabDepth;
+		final ClippedTransitionRealTransform[] transforms = new ClippedTransitionRealTransform[ numSlabs ];
+		for ( int s = 0; s < numSlabs; ++s )
+			transforms[ s ] = transform.copy();
+
+		IntStream.range( 0, numSlabs ).parallel().forEach(
+				s -> renderSlab(
+						source,
+						transforms[ s ],
+						interval,
+						stack,
+						s * slabDepth,
+						Math.min( depth, ( s + 1 ) * slabDepth ) ) );
+
+		return stack;
+	}
+
+	/**
+	 * Render a 3D source through a transform, in slabs of one z-plane.
+	 *
+	 * @param source 3D source
+	 * @param transform maps target coordinates into the source
+	 * @param interval 3D target interval
+	 * @return one {@link FloatProcessor} per z-plane
+	 */
+	public static ImageStack render(
+			final RealRandomAccessible< FloatType > source,
+			final ClippedTransitionRealTransform transform,
+			final Interval interval )
+	{
+		return render( source, transform, interval, 1 );
+	}
+}
@@ -0,0 +1,325 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.util.stream.IntStream;
+
+import ij.process.ColorProcessor;
+
+/**
+ * Color coding of 2D flow vectors.  The direction of a vector is mapped to
+ * hue, its length relative to a maximum to brightness.
+ *
+ * Arrays are colored in parallel through lookup tables.  Integer vectors
+ * use an exact table of all vectors up to the maximum.  Float vectors are
+ * normalized and looked up in a quantized table over the unit disk with
+ * {@value #lutRadius} steps per unit; this is accurate to about one gray
+ * level.  Vectors longer than the maximum are colored exactly, vectors
+ * with non-finite components are black.
+ */
+public class FlowColorWheel
+{
+	final static public int lutRadius = 512;
+	final static private int lutSize = 2 * lutRadius + 1;
+	final static private int maxShortRadius = 1024;
+	final static private int blockSize = 1 << 16;
+
+	/* colors of normalized vectors on a grid over [-1, 1]^2, created on first use */
+	private static int[] lut = null;
+
+	/* exact table of integer vectors for the most recently used max */
+	private static class ShortTable
+	{
+		final double max;
+		final int r;
+		final int size;
+		final int[] table;
+
+		ShortTable( final double max )
+		{
+			this.max = max;
+			r = Math.min( maxShortRadius, ( int )Math.ceil( max ) );
+			size = 2 * r + 1;
+			table = new int[ size * size ];
+			IntStream.range( 0, size ).parallel().forEach(
+					iy -> {
+						for ( int ix = 0, i = iy * size; ix < size; ++ix, ++i )
+							table[ i ] = algebraicToColor( ix - r, iy - r, max );
+					} );
+		}
+
+		int color( final int x, final int y )
+		{
+			if ( x < -r || x > r || y < -r || y > r )
+				return algebraicToColor( x, y, max );
+			else
+				return table[ ( y + r ) * size + x + r ];
+		}
+	}
+
+	private static volatile ShortTable shortTable = null;
+
+	private FlowColorWheel() {}
+
+	final static private synchronized int[] lut()
+	{
+		if ( lut == null )
+		{
+			final int[] table = new int[ lutSize * lutSize ];
+			IntStream.range( 0, lutSize ).parallel().forEach(
+					iy -> {
+						final double y = ( double )( iy - lutRadius ) / lutRadius;
+						for ( int ix = 0, i = iy * lutSize; ix < lutSize; ++ix, ++i )
+							table[ i ] = algebraicToColor( ( double )( ix - lutRadius ) / lutRadius, y, 1.0 );
+					} );
+			lut = table;
+		}
+		return lut;
+	}
+
+	/**
+	 * Draw the color wheel for vectors up to maxDistance into ip.
+	 *
+	 * @param ip
+	 * @param maxDistance
+	 */
+	public static void colorCircle( final ColorProcessor ip, final int maxDistance )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int r1 = Math.min( width, height ) / 2;
+		final int[] pixels = ( int[] )ip.getPixels();
+		final int[] lut = lut();
+
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			final float dy = y - height / 2;
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final float dx = x - width / 2;
+				final float l = ( float )Math.sqrt( dx * dx + dy * dy );
+
+				if ( l > r1 )
+					pixels[ i ] = 0;
+				else
+					pixels[ i ] = lookup( dx, dy, maxDistance, lut );
+			}
+		}
+	}
+
+	/**
+	 * Color of a vector whose length is normalized to [0,1].
+	 *
+	 * @param xs
+	 * @param ys
+	 * @return RGB
+	 */
+	public static int colorVector( final float xs, final float ys )
+	{
+		final double a = Math.sqrt( xs * xs + ys * ys );
+		if ( a == 0.0 ) return 0;
+
+		double o = ( Math.atan2( xs / a, ys / a ) + Math.PI ) / Math.PI * 3;
+
+		final double r, g, b;
+
+		if ( o < 3 )
+			r = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
+		else
+			r = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
+
+		o += 2;
+		if ( o >= 6 ) o -= 6;
+
+		if ( o < 3 )
+			g = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
+		else
+			g = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
+
+		o += 2;
+		if ( o >= 6 ) o -= 6;
+
+		if ( o < 3 )
+			b = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * a;
+		else
+			b = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * a;
+
+		return ( ( ( ( int )( r * 255 ) << 8 ) | ( int )( g * 255 ) ) << 8 ) | ( int )( b * 255 );
+	}
+
+	/**
+	 * Color of a vector (x, y) with length relative to max.
+	 *
+	 * @param x
+	 * @param y
+	 * @param max
+	 * @return RGB
+	 */
+	public static int algebraicToColor( final double x, final double y, final double max )
+	{
+		final double xs = x / max;
+		final double ys = y / max;
+
+		final double r = Math.sqrt( xs * xs + ys * ys );
+		if ( r == 0.0 )
+			return 0;
+
+		final double phi = Math.atan2( xs / r, ys / r );
+		final double red, green, blue;
+
+		double o = ( phi + Math.PI ) / Math.PI * 3;
+
+		if ( o < 3 )
+			red = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
+		else
+			red = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
+
+		o += 2;
+		if ( o >= 6 ) o -= 6;
+
+		if ( o < 3 )
+			green = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
+		else
+			green = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
+
+		o += 2;
+		if ( o >= 6 ) o -= 6;
+
+		if ( o < 3 )
+			blue = Math.min( 1.0, Math.max( 0.0, 2.0 - o ) ) * r;
+		else
+			blue = Math.min( 1.0, Math.max( 0.0, o - 4.0 ) ) * r;
+
+		return ( ( ( ( int )( red * 255 ) << 8 ) | ( int )( green * 255 ) ) << 8 ) | ( int )( blue * 255 );
+	}
+
+	/**
+	 * Color of a vector (x, y) with length relative to max through the
+	 * quantized lookup table.
+	 *
+	 * @param x
+	 * @param y
+	 * @param max
+	 * @param lut
+	 * @return RGB
+	 */
+	private static int lookup( final double x, final double y, final double max, final int[] lut )
+	{
+		final double xs = x / max;
+		final double ys = y / max;
+		final double r2 = xs * xs + ys * ys;
+		if ( !( r2 <= 1.0 ) )
+			/* longer than max or not finite, the latter is black */
+			return Double.isFinite( r2 ) ? algebraicToColor( x, y, max ) : 0;
+
+		final int ix = ( int )( ( xs + 1.0 ) * lutRadius + 0.5 );
+		final int iy = ( int )( ( ys + 1.0 ) * lutRadius + 0.5 );
+		return lut[ iy * lutSize + ix ];
+	}
+
+	/**
+	 * Color all vectors through the quantized lookup table, in parallel.
+	 *
+	 * @param ipXPixels
+	 * @param ipYPixels
+	 * @param ipColorPixels
+	 * @param max
+	 */
+	public static void algebraicToColor(
+			final float[] ipXPixels,
+			final float[] ipYPixels,
+			final int[] ipColorPixels,
+			final double max )
+	{
+		final int[] lut = lut();
+		final int n = ipXPixels.length;
+		IntStream.range( 0, ( n + blockSize - 1 ) / blockSize ).parallel().forEach(
+				b -> {
+					final int to = Math.min( n, ( b + 1 ) * blockSize );
+					for ( int i = b * blockSize; i < to; ++i )
+						ipColorPixels[ i ] = lookup( ipXPixels[ i ], ipYPixels[ i ], max, lut );
+				} );
+	}
+
+	/**
+	 * Color vectors through the quantized lookup table in the calling
+	 * thread, for callers that parallelize themselves.
+	 *
+	 * @param xs
+	 * @param ys
+	 * @param rgb
+	 * @param rgbOffset index in rgb of the first color
+	 * @param max
+	 * @param length number of vectors
+	 */
+	public static void algebraicToColor(
+			final double[] xs,
+			final double[] ys,
+			final int[] rgb,
+			final int rgbOffset,
+			final double max,
+			final int length )
+	{
+		final int[] lut = lut();
+		for ( int i = 0; i < length; ++i )
+			rgb[ rgbOffset + i ] = lookup( xs[ i ], ys[ i ], max, lut );
+	}
+
+	/**
+	 * Color all vectors through an exact table of all integer vectors up to
+	 * max, in parallel.  The table is kept for the next call with the same
+	 * max.  It is not built for arrays smaller than the table, those are
+	 * colored exactly.
+	 *
+	 * @param ipXPixels
+	 * @param ipYPixels
+	 * @param ipColorPixels
+	 * @param max
+	 */
+	public static void algebraicToColor(
+			final short[] ipXPixels,
+			final short[] ipYPixels,
+			final int[] ipColorPixels,
+			final double max )
+	{
+		final int n = ipXPixels.length;
+		ShortTable table = shortTable;
+		if ( table == null || table.max != max )
+		{
+			final long r = Math.min( maxShortRadius, ( long )Math.ceil( max ) );
+			if ( n < ( 2 * r + 1 ) * ( 2 * r + 1 ) )
+				table = null;
+			else
+			{
+				table = new ShortTable( max );
+				shortTable = table;
+			}
+		}
+
+		final ShortTable t = table;
+		IntStream.range( 0, ( n + blockSize - 1 ) / blockSize ).parallel().forEach(
+				b -> {
+					final int to = Math.min( n, ( b + 1 ) * blockSize );
+					if ( t == null )
+						for ( int i = b * blockSize; i < to; ++i )
+							ipColorPixels[ i ] = algebraicToColor( ipXPixels[ i ], ipYPixels[ i ], max );
+					else
+						for ( int i = b * blockSize; i < to; ++i )
+							ipColorPixels[ i ] = t.color( ipXPixels[ i ], ipYPixels[ i ] );
+				} );
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ColorProcessor;
+
+/**
+ * Writes a power-of-two pyramid of a position field while the full
+ * resolution field is streamed through it in row order, e.g. by the
+ * {@link PositionFieldExporter}.  Level <em>l</em> averages the displacement
+ * of 2<sup><em>l</em></sup>&times;2<sup><em>l</em></sup> pixels and is
+ * stored as
+ *
+ * <pre>
+ * &lt;basePath&gt;.pyramid/&lt;l&gt;      {@link PositionFieldContainer} with float32 displacements in level pixels
+ * &lt;basePath&gt;.pyramid/&lt;l&gt;.png  {@link FlowColorWheel} rendering of the displacement in full resolution pixels
+ * </pre>
+ *
+ * Apart from the color renderings, only one row of blocks is buffered per
+ * level.
+ */
+public class FlowPyramidWriter implements Closeable
+{
+	final static public int blockSize = 256;
+
+	private class Level
+	{
+		final int shift;
+		final int width;
+		final long height;
+		final PositionFieldContainer container;
+
+		/* sums of displacements in full resolution pixels, one row of blocks */
+		final double[] dx;
+		final double[] dy;
+		final int[] counts;
+		final int[] rgb;
+
+		long blockRow = 0;
+
+		Level( final int shift ) throws IOException
+		{
+			this.shift = shift;
+			final long scale = 1L << shift;
+			width = ( int )( ( fullWidth + scale - 1 ) >> shift );
+			height = ( fullHeight + scale - 1 ) >> shift;
+			container = PositionFieldContainer.create(
+					new File( pyramidPath, Integer.toString( shift ) ).getPath(),
+					width,
+					height,
+					blockSize,
+					blockSize,
+					basePath,
+					PositionFieldContainer.Encoding.FLOAT32,
+					1 );
+			dx = new double[ width * blockSize ];
+			dy = new double[ width * blockSize ];
+			counts = new int[ width * blockSize ];
+			rgb = new int[ ( int )( width * height ) ];
+		}
+
+		void addRow( final double[][] positions, final int offset, final long y ) throws IOException
+		{
+			final long ly = y >> shift;
+			final long br = ly / blockSize;
+			if ( br != blockRow )
+			{
+				flush();
+				blockRow = br;
+			}
+
+			final int rowOffset = ( int )( ly - br * blockSize ) * width;
+			for ( int x = 0; x < fullWidth; ++x )
+			{
+				final int i = rowOffset + ( x >> shift );
+				dx[ i ] += positions[ 0 ][ offset + x ] - x;
+				dy[ i ] += positions[ 1 ][ offset + x ] - y;
+				++counts[ i ];
+			}
+		}
+
+		void flush() throws IOException
+		{
+			final double scale = 1L << shift;
+			final int rows = container.blockHeight( blockRow );
+			final long y0 = blockRow * blockSize;
+			for ( long bx = 0; bx < container.numBlocksX(); ++bx )
+			{
+				final int x0 = ( int )bx * blockSize;
+				final int w = container.blockWidth( bx );
+				final double[] x = new double[ w * rows ];
+				final double[] y = new double[ w * rows ];
+				for ( int yi = 0, j = 0; yi < rows; ++yi )
+				{
+					for ( int xi = 0; xi < w; ++xi, ++j )
+					{
+						final int i = yi * width + x0 + xi;
+						final int count = Math.max( 1, counts[ i ] );
+						final double meanX = dx[ i ] / count;
+						final double meanY = dy[ i ] / count;
+						x[ j ] = x0 + xi + meanX / scale;
+						y[ j ] = y0 + yi + meanY / scale;
+						rgb[ ( int )( ( y0 + yi ) * width ) + x0 + xi ] = FlowColorWheel.algebraicToColor( meanX, meanY, maxDistance );
+					}
+				}
+				container.writeBlock( bx, blockRow, x, y );
+			}
+
+			Arrays.fill( dx, 0 );
+			Arrays.fill( dy, 0 );
+			Arrays.fill( counts, 0 );
+		}
+
+		void close() throws IOException
+		{
+			flush();
+			new FileSaver(
+					new ImagePlus(
+							basePath + " " + shift,
+							new ColorProcessor( width, ( int )height, rgb ) ) ).saveAsPng( new File( pyramidPath, shift + ".png" ).getPath() );
+		}
+	}
+
+	private final String basePath;
+	private final File pyramidPath;
+	private final int fullWidth;
+	private final long fullHeight;
+	private final double maxDistance;
+	private final Level[] levels;
+
+	/**
+	 * @param basePath the pyramid is written to basePath + ".pyramid"
+	 * @param width of the full resolution field
+	 * @param height of the full resolution field
+	 * @param numLevels levels 1 to numLevels are written
+	 * @param maxDistance displacement in full resolution pixels that maps to
+	 *     full brightness in the color rendering
+	 * @throws IOException
+	 */
+	public FlowPyramidWriter(
+			final String basePath,
+			final int width,
+			final long height,
+			final int numLevels,
+			final double maxDistance ) throws IOException
+	{
+		this.basePath = basePath;
+		pyramidPath = new File( basePath + ".pyramid" );
+		fullWidth = width;
+		fullHeight = height;
+		this.maxDistance = maxDistance;
+		levels = new Level[ numLevels ];
+		for ( int l = 0; l < numLevels; ++l )
+			levels[ l ] = new Level( l + 1 );
+	}
+
+	/**
+	 * The number of levels until both dimensions are at most maxSize.
+	 *
+	 * @param width
+	 * @param height
+	 * @param maxSize
+	 * @return
+	 */
+	public static int numLevels( final long width, final long height, final long maxSize )
+	{
+		int numLevels = 0;
+		for ( long size = Math.max( width, height ); size > maxSize; size = ( size + 1 ) >> 1 )
+			++numLevels;
+		return numLevels;
+	}
+
+	/**
+	 * Add full resolution rows [y0, y0 + h).  Rows must be added in order.
+	 *
+	 * @param positions x and y positions in flat iteration order
+	 * @param y0
+	 * @param h
+	 * @throws IOException
+	 */
+	public void addRows( final double[][] positions, final long y0, final int h ) throws IOException
+	{
+		for ( int y = 0; y < h; ++y )
+			for ( final Level level : levels )
+				level.addRow( positions, y * fullWidth, y0 + y );
+	}
+
+	/**
+	 * Write the last row of blocks and the color renderings.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for ( final Level level : levels )
+			level.close();
+	}
+}
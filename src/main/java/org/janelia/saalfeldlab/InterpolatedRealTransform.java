@@ -46,9 +46,14 @@ import net.imglib2.realtransform.RealTransform;
  * The lambda parameter is the weight that applies to transform A, i.e. the
  * interpolated transform is (lambda * a) + (1-lambda * b).
  *
+ * Blocks of points can be transformed with
+ * {@link #apply(double[][], double[][], int)}, optionally with one lambda per
+ * point.  Then, both transforms are applied to the whole block before
+ * interpolating.
+ *
  * @author Stephan Saalfeld
  */
-public class InterpolatedRealTransform implements RealTransform
+public class InterpolatedRealTransform implements BatchRealTransform
 {
 	private final RealTransform a;
 	private final RealTransform b;
@@ -58,6 +63,10 @@ public class InterpolatedRealTransform implements RealTransform
 	private final RealPoint targetPositionableA;
 	private final RealPoint targetPositionableB;
 
+	/* batch buffers, grown on demand */
+	private double[][] targetPositionsA = new double[ 0 ][ 0 ];
+	private double[][] targetPositionsB = new double[ 0 ][ 0 ];
+
 	public InterpolatedRealTransform(
 			final RealTransform a,
 			final RealTransform b,
@@ -120,6 +129,54 @@ public class InterpolatedRealTransform implements RealTransform
 			target.setPosition( ( targetPositionA[ d ] - targetPositionB[ d ] ) * lambda + targetPositionB[ d ], d );
 	}
 
+	private void applyBatch( final double[][] source, final int n )
+	{
+		if ( targetPositionsA.length == 0 || targetPositionsA[ 0 ].length < n )
+		{
+			targetPositionsA = new double[ targetPositionA.length ][ n ];
+			targetPositionsB = new double[ targetPositionB.length ][ n ];
+		}
+		BatchRealTransform.apply( a, source, targetPositionsA, n );
+		BatchRealTransform.apply( b, source, targetPositionsB, n );
+	}
+
+	@Override
+	public void apply( final double[][] source, final double[][] target, final int n )
+	{
+		applyBatch( source, n );
+
+		for ( int d = 0; d < targetPositionA.length; d++ )
+		{
+			final double[] pa = targetPositionsA[ d ];
+			final double[] pb = targetPositionsB[ d ];
+			final double[] t = target[ d ];
+			for ( int i = 0; i < n; ++i )
+				t[ i ] = ( pa[ i ] - pb[ i ] ) * lambda + pb[ i ];
+		}
+	}
+
+	/**
+	 * Apply to n points with one lambda per point.
+	 *
+	 * @param source one array per source dimension
+	 * @param target one array per target dimension, not the arrays of source
+	 * @param lambdas
+	 * @param n
+	 */
+	public void apply( final double[][] source, final double[][] target, final double[] lambdas, final int n )
+	{
+		applyBatch( source, n );
+
+		for ( int d = 0; d < targetPositionA.length; d++ )
+		{
+			final double[] pa = targetPositionsA[ d ];
+			final double[] pb = targetPositionsB[ d ];
+			final double[] t = target[ d ];
+			for ( int i = 0; i < n; ++i )
+				t[ i ] = ( pa[ i ] - pb[ i ] ) * lambdas[ i ] + pb[ i ];
+		}
+	}
+
 	@Override
 	public InterpolatedRealTransform copy()
 	{
@@ -0,0 +1,142 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * A read-only {@link RandomAccessibleInterval} over a file of raw big-endian
+ * doubles in flat iteration order, e.g. a <code>.x.bin</code> or
+ * <code>.y.bin</code> position field.  The file is memory mapped, i.e.
+ * opening is instantaneous, only pages that are actually accessed are read,
+ * and concurrent processes share the page cache.
+ *
+ * Files larger than 2GB are mapped in several segments.  Writing to the
+ * {@link DoubleType} returned by {@link RandomAccess#get()} has no effect on
+ * the file.
+ */
+public class MappedDoubleRandomAccessibleInterval extends AbstractInterval implements RandomAccessibleInterval< DoubleType >
+{
+	/* values per mapped segment, 1GB */
+	final static private int segmentBits = 27;
+	final static private long segmentMask = ( 1L << segmentBits ) - 1;
+
+	private final DoubleBuffer[] segments;
+	private final long[] strides;
+
+	private MappedDoubleRandomAccessibleInterval( final DoubleBuffer[] segments, final long... dimensions )
+	{
+		super( dimensions );
+		this.segments = segments;
+		strides = new long[ dimensions.length ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < dimensions.length; ++d )
+			strides[ d ] = strides[ d - 1 ] * dimensions[ d - 1 ];
+	}
+
+	/**
+	 * Map a file of raw big-endian doubles.
+	 *
+	 * @param filePath
+	 * @param dimensions
+	 * @return
+	 * @throws IOException if the file size does not match the dimensions
+	 */
+	public static MappedDoubleRandomAccessibleInterval open( final String filePath, final long... dimensions ) throws IOException
+	{
+		long n = 1;
+		for ( final long d : dimensions )
+			n *= d;
+
+		try ( final FileChannel channel = FileChannel.open( new File( filePath ).toPath(), StandardOpenOption.READ ) )
+		{
+			if ( channel.size() != n * 8 )
+				throw new IOException( "File size " + channel.size() + " of " + filePath + " does not match " + n + " doubles." );
+
+			final DoubleBuffer[] segments = new DoubleBuffer[ ( int )( ( n + segmentMask ) >>> segmentBits ) ];
+			for ( int s = 0; s < segments.length; ++s )
+			{
+				final long offset = ( long )s << segmentBits;
+				final long size = Math.min( segmentMask + 1, n - offset );
+				segments[ s ] = channel.map( MapMode.READ_ONLY, offset * 8, size * 8 ).asDoubleBuffer();
+			}
+
+			/* the mapping remains valid after the channel is closed */
+			return new MappedDoubleRandomAccessibleInterval( segments, dimensions );
+		}
+	}
+
+	public class MappedDoubleRandomAccess extends Point implements RandomAccess< DoubleType >
+	{
+		private final DoubleType t = new DoubleType();
+
+		public MappedDoubleRandomAccess()
+		{
+			super( MappedDoubleRandomAccessibleInterval.this.n );
+		}
+
+		@Override
+		public DoubleType get()
+		{
+			long i = 0;
+			for ( int d = 0; d < n; ++d )
+				i += position[ d ] * strides[ d ];
+
+			/* absolute get does not modify the buffer, so segments can be shared */
+			t.set( segments[ ( int )( i >>> segmentBits ) ].get( ( int )( i & segmentMask ) ) );
+			return t;
+		}
+
+		@Override
+		public MappedDoubleRandomAccess copy()
+		{
+			final MappedDoubleRandomAccess copy = new MappedDoubleRandomAccess();
+			copy.setPosition( this );
+			return copy;
+		}
+
+		@Override
+		public MappedDoubleRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	@Override
+	public MappedDoubleRandomAccess randomAccess()
+	{
+		return new MappedDoubleRandomAccess();
+	}
+
+	@Override
+	public MappedDoubleRandomAccess randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+}
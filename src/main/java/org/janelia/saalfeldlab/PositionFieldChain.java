@@ -0,0 +1,290 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.util.ArrayList;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.RealTransformRandomAccessible;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * A composition of {@link RealTransform RealTransforms} that starts as the
+ * identity and grows by prepending or appending stages.  Identity stages
+ * are dropped and adjacent {@link AffineGet affines}, e.g. the
+ * {@link net.imglib2.realtransform.Scale2D scales} that bracket a
+ * deformation estimated at a lower resolution, are folded into a single
+ * affine, so they are never evaluated per pixel.  The chain is applied in
+ * a single traversal of its stages, instead of through nested
+ * {@link RealTransformRandomAccessible RealTransformRandomAccessibles} per
+ * coordinate.
+ *
+ * Like other {@link RealTransform RealTransforms}, a chain is not thread
+ * safe, use {@link #copy()} for each thread.
+ */
+public class PositionFieldChain implements BatchRealTransform
+{
+	final static private double eps = 1e-12;
+
+	private final int n;
+
+	/* stages in order of application */
+	private final ArrayList< RealTransform > stages = new ArrayList<>();
+
+	private final double[] a;
+	private final double[] b;
+	private double[][] batchA = new double[ 0 ][];
+	private double[][] batchB = new double[ 0 ][];
+
+	public PositionFieldChain( final int numDimensions )
+	{
+		n = numDimensions;
+		a = new double[ n ];
+		b = new double[ n ];
+	}
+
+	private static boolean isIdentity( final AffineGet affine )
+	{
+		final int n = affine.numSourceDimensions();
+		for ( int r = 0; r < n; ++r )
+			for ( int c = 0; c <= n; ++c )
+				if ( Math.abs( affine.get( r, c ) - ( r == c ? 1 : 0 ) ) > eps )
+					return false;
+		return true;
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return the affine that applies first, then second
+	 */
+	private AffineTransform fold( final AffineGet first, final AffineGet second )
+	{
+		final double[] m = new double[ n * ( n + 1 ) ];
+		for ( int r = 0, i = 0; r < n; ++r )
+		{
+			for ( int c = 0; c < n; ++c, ++i )
+				for ( int k = 0; k < n; ++k )
+					m[ i ] += second.get( r, k ) * first.get( k, c );
+			m[ i ] = second.get( r, n );
+			for ( int k = 0; k < n; ++k )
+				m[ i ] += second.get( r, k ) * first.get( k, n );
+			++i;
+		}
+		final AffineTransform affine = new AffineTransform( n );
+		affine.set( m );
+		return affine;
+	}
+
+	private void insert( final int index, final AffineGet affine )
+	{
+		if ( !isIdentity( affine ) )
+			stages.add( index, affine );
+	}
+
+	private void addFirst( final RealTransform stage )
+	{
+		if ( stage instanceof AffineGet )
+		{
+			final AffineGet affine = ( AffineGet )stage;
+			if ( !stages.isEmpty() && stages.get( 0 ) instanceof AffineGet )
+				insert( 0, fold( affine, ( AffineGet )stages.remove( 0 ) ) );
+			else
+				insert( 0, affine.copy() );
+		}
+		else
+			stages.add( 0, stage );
+	}
+
+	private void addLast( final RealTransform stage )
+	{
+		if ( stage instanceof AffineGet )
+		{
+			final AffineGet affine = ( AffineGet )stage;
+			final int last = stages.size() - 1;
+			if ( last >= 0 && stages.get( last ) instanceof AffineGet )
+				insert( last, fold( ( AffineGet )stages.remove( last ), affine ) );
+			else
+				insert( stages.size(), affine.copy() );
+		}
+		else
+			stages.add( stage );
+	}
+
+	/**
+	 * Prepend stages that are applied in the given order before all
+	 * existing stages.  Non-affine stages are not copied.
+	 *
+	 * @param first
+	 * @return this
+	 */
+	public PositionFieldChain addFirst( final RealTransform... first )
+	{
+		for ( int i = first.length - 1; i >= 0; --i )
+			addFirst( first[ i ] );
+		return this;
+	}
+
+	/**
+	 * Append stages that are applied in the given order after all existing
+	 * stages.  Non-affine stages are not copied.
+	 *
+	 * @param last
+	 * @return this
+	 */
+	public PositionFieldChain addLast( final RealTransform... last )
+	{
+		for ( final RealTransform stage : last )
+			addLast( stage );
+		return this;
+	}
+
+	public boolean isIdentity()
+	{
+		return stages.isEmpty();
+	}
+
+	public int numStages()
+	{
+		return stages.size();
+	}
+
+	/**
+	 * @return a snapshot of the chain that is not affected by later changes
+	 */
+	public RealTransform transform()
+	{
+		return stages.size() == 1 ? stages.get( 0 ).copy() : copy();
+	}
+
+	/**
+	 * The <em>d</em>-th coordinate of the chain as a field.  The identity
+	 * is the plain {@link RealPositionRealRandomAccessible}, otherwise a
+	 * snapshot of the chain is applied.
+	 *
+	 * @param d
+	 * @return
+	 */
+	public RealRandomAccessible< DoubleType > positionField( final int d )
+	{
+		final RealPositionRealRandomAccessible position = new RealPositionRealRandomAccessible( n, d );
+		if ( isIdentity() )
+			return position;
+		else
+			return new RealTransformRandomAccessible<>( position, transform() );
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return n;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return n;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		final int numStages = stages.size();
+		if ( numStages == 0 )
+		{
+			System.arraycopy( source, 0, target, 0, n );
+			return;
+		}
+
+		double[] s = source;
+		double[] t = a;
+		for ( int i = 0; i < numStages - 1; ++i )
+		{
+			stages.get( i ).apply( s, t );
+			s = t;
+			t = t == a ? b : a;
+		}
+		stages.get( numStages - 1 ).apply( s, target );
+	}
+
+	@Override
+	public void apply( final float[] source, final float[] target )
+	{
+		final double[] s = new double[ n ];
+		final double[] t = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			s[ d ] = source[ d ];
+		apply( s, t );
+		for ( int d = 0; d < n; ++d )
+			target[ d ] = ( float )t[ d ];
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		final double[] s = new double[ n ];
+		final double[] t = new double[ n ];
+		source.localize( s );
+		apply( s, t );
+		target.setPosition( t );
+	}
+
+	private static double[][] grow( final double[][] buffer, final int n, final int size )
+	{
+		if ( buffer.length == n && buffer[ 0 ].length >= size )
+			return buffer;
+		return new double[ n ][ size ];
+	}
+
+	@Override
+	public void apply( final double[][] source, final double[][] target, final int size )
+	{
+		final int numStages = stages.size();
+		if ( numStages == 0 )
+		{
+			for ( int d = 0; d < n; ++d )
+				System.arraycopy( source[ d ], 0, target[ d ], 0, size );
+			return;
+		}
+
+		batchA = grow( batchA, n, size );
+		batchB = grow( batchB, n, size );
+		double[][] s = source;
+		double[][] t = batchA;
+		for ( int i = 0; i < numStages - 1; ++i )
+		{
+			BatchRealTransform.apply( stages.get( i ), s, t, size );
+			s = t;
+			t = t == batchA ? batchB : batchA;
+		}
+		BatchRealTransform.apply( stages.get( numStages - 1 ), s, target, size );
+	}
+
+	@Override
+	public PositionFieldChain copy()
+	{
+		final PositionFieldChain copy = new PositionFieldChain( n );
+		for ( final RealTransform stage : stages )
+			copy.stages.add( stage.copy() );
+		return copy;
+	}
+}
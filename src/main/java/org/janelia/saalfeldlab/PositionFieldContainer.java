@@ -0,0 +1,810 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.LongStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * A chunked, compressed container for 2D position fields.  The container is
+ * a directory with an <code>attributes.json</code> header and one file per
+ * block.  The layout follows the N5 dataset format, i.e. the container can be
+ * opened as a 3D dataset <em>(x, y, component)</em> by N5 readers:
+ *
+ * <pre>
+ * attributes.json  {"dimensions":[w,h,2],"blockSize":[bw,bh,2],"dataType":"float64",
+ *                   "compression":{"type":"gzip"},"source":"..."}
+ *                  optionally "displacement":true, "float16":true, "precision":p
+ * &lt;bx&gt;/&lt;by&gt;/0  one block with both components, big-endian
+ * </pre>
+ *
+ * Blocks are written and read independently, so parallel writers can
+ * produce blocks concurrently and readers load only the blocks they access.
+ *
+ * Positions are stored as float64 by default.  The compact
+ * {@link Encoding encodings} store the displacement relative to the pixel
+ * grid instead, as float32, float16 or int16 scaled by a declared precision,
+ * and are reconstructed to positions when read.  This reduces storage and
+ * I/O by 2&ndash;4&times; before compression, and considerably more after
+ * compression because displacements are small and smooth.
+ */
+public class PositionFieldContainer
+{
+	final static public String attributesFile = "attributes.json";
+
+	/**
+	 * On-disk encodings.  All but {@link #FLOAT64} store displacements.
+	 */
+	public enum Encoding
+	{
+		/** absolute positions, 64 bit float */
+		FLOAT64( "float64", 8 ),
+		/** displacements, 32 bit float */
+		FLOAT32( "float32", 4 ),
+		/** displacements, IEEE 754 half precision float, stored as uint16 */
+		FLOAT16( "uint16", 2 ),
+		/** displacements, signed 16 bit integer times precision */
+		INT16( "int16", 2 );
+
+		final public String dataType;
+		final public int bytes;
+
+		private Encoding( final String dataType, final int bytes )
+		{
+			this.dataType = dataType;
+			this.bytes = bytes;
+		}
+
+		public boolean isDisplacement()
+		{
+			return this != FLOAT64;
+		}
+	}
+
+	private final File base;
+	private final long width;
+	private final long height;
+	private final int blockWidth;
+	private final int blockHeight;
+	private final String compression;
+	private final String source;
+	private final Encoding encoding;
+	private final double precision;
+
+	/* decoded blocks, shared by all views */
+	private final ConcurrentHashMap< Long, SoftReference< double[][] > > cache = new ConcurrentHashMap<>();
+
+	private PositionFieldContainer(
+			final File base,
+			final long width,
+			final long height,
+			final int blockWidth,
+			final int blockHeight,
+			final String compression,
+			final String source,
+			final Encoding encoding,
+			final double precision )
+	{
+		this.base = base;
+		this.width = width;
+		this.height = height;
+		this.blockWidth = blockWidth;
+		this.blockHeight = blockHeight;
+		this.compression = compression;
+		this.source = source;
+		this.encoding = encoding;
+		this.precision = precision;
+	}
+
+	/**
+	 * Create a new container, or overwrite the header of an existing one.
+	 *
+	 * @param basePath
+	 * @param width
+	 * @param height
+	 * @param blockWidth
+	 * @param blockHeight
+	 * @param source the image that the position field refers to, may be null
+	 * @param encoding
+	 * @param precision quantization step in px for {@link Encoding#INT16},
+	 *     displacements beyond &plusmn;32767 &times; precision or not
+	 *     finite are rejected by {@link #writeBlock(long, long, double[], double[])};
+	 *     ignored by all other encodings
+	 * @return
+	 * @throws IOException
+	 */
+	public static PositionFieldContainer create(
+			final String basePath,
+			final long width,
+			final long height,
+			final int blockWidth,
+			final int blockHeight,
+			final String source,
+			final Encoding encoding,
+			final double precision ) throws IOException
+	{
+		final PositionFieldContainer container = new PositionFieldContainer(
+				new File( basePath ),
+				width,
+				height,
+				blockWidth,
+				blockHeight,
+				"gzip",
+				source,
+				encoding,
+				precision );
+		container.writeAttributes();
+		return container;
+	}
+
+	/**
+	 * Create a new container that stores positions as float64.
+	 *
+	 * @param basePath
+	 * @param width
+	 * @param height
+	 * @param blockWidth
+	 * @param blockHeight
+	 * @param source the image that the position field refers to, may be null
+	 * @return
+	 * @throws IOException
+	 */
+	public static PositionFieldContainer create(
+			final String basePath,
+			final long width,
+			final long height,
+			final int blockWidth,
+			final int blockHeight,
+			final String source ) throws IOException
+	{
+		return create( basePath, width, height, blockWidth, blockHeight, source, Encoding.FLOAT64, 1 );
+	}
+
+	/**
+	 * Open an existing container.
+	 *
+	 * @param basePath
+	 * @return
+	 * @throws IOException
+	 */
+	public static PositionFieldContainer open( final String basePath ) throws IOException
+	{
+		final File base = new File( basePath );
+		final String json = new String( Files.readAllBytes( new File( base, attributesFile ).toPath() ), StandardCharsets.UTF_8 );
+
+		final long[] dimensions = parseLongArray( json, "dimensions" );
+		final long[] blockSize = parseLongArray( json, "blockSize" );
+		final String dataType = parseString( json, "dataType" );
+		if ( dimensions == null || blockSize == null || dimensions.length != 3 || dimensions[ 2 ] != 2 || blockSize.length != 3 || blockSize[ 2 ] != 2 )
+			throw new IOException( basePath + " is not a 2D position field." );
+
+		Encoding encoding = null;
+		for ( final Encoding e : Encoding.values() )
+			if ( e.dataType.equals( dataType ) )
+				encoding = e;
+		if ( encoding == null )
+			throw new IOException( "Unsupported data type " + dataType + "." );
+
+		final String precision = parseNumber( json, "precision" );
+
+		String compression = parseString( json, "type" );
+		if ( compression == null )
+			compression = parseString( json, "compressionType" );
+		if ( compression == null )
+			compression = "raw";
+		if ( !( compression.equals( "gzip" ) || compression.equals( "raw" ) ) )
+			throw new IOException( "Unsupported compression " + compression + "." );
+
+		return new PositionFieldContainer(
+				base,
+				dimensions[ 0 ],
+				dimensions[ 1 ],
+				( int )blockSize[ 0 ],
+				( int )blockSize[ 1 ],
+				compression,
+				parseString( json, "source" ),
+				encoding,
+				precision == null ? 1 : Double.parseDouble( precision ) );
+	}
+
+	private void writeAttributes() throws IOException
+	{
+		base.mkdirs();
+		final StringBuilder json = new StringBuilder();
+		json.append( "{\"dimensions\":[" ).append( width ).append( "," ).append( height ).append( ",2]," );
+		json.append( "\"blockSize\":[" ).append( blockWidth ).append( "," ).append( blockHeight ).append( ",2]," );
+		json.append( "\"dataType\":\"" ).append( encoding.dataType ).append( "\"," );
+		if ( encoding.isDisplacement() )
+			json.append( "\"displacement\":true," );
+		if ( encoding == Encoding.FLOAT16 )
+			json.append( "\"float16\":true," );
+		if ( encoding == Encoding.INT16 )
+			json.append( "\"precision\":" ).append( precision ).append( "," );
+		json.append( "\"compression\":{\"type\":\"" ).append( compression ).append( "\"}" );
+		if ( source != null )
+			json.append( ",\"source\":\"" ).append( escape( source ) ).append( "\"" );
+		json.append( "}" );
+		Files.write( new File( base, attributesFile ).toPath(), json.toString().getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	private static String escape( final String s )
+	{
+		return s.replace( "\\", "\\\\" ).replace( "\"", "\\\"" );
+	}
+
+	private static String parseString( final String json, final String key )
+	{
+		final Matcher m = Pattern.compile( "\"" + key + "\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"" ).matcher( json );
+		return m.find() ? m.group( 1 ).replace( "\\\"", "\"" ).replace( "\\\\", "\\" ) : null;
+	}
+
+	private static String parseNumber( final String json, final String key )
+	{
+		final Matcher m = Pattern.compile( "\"" + key + "\"\\s*:\\s*([-+0-9.eE]+)" ).matcher( json );
+		return m.find() ? m.group( 1 ) : null;
+	}
+
+	private static long[] parseLongArray( final String json, final String key )
+	{
+		final Matcher m = Pattern.compile( "\"" + key + "\"\\s*:\\s*\\[([^\\]]*)\\]" ).matcher( json );
+		if ( !m.find() )
+			return null;
+		final String[] values = m.group( 1 ).split( "," );
+		final long[] array = new long[ values.length ];
+		for ( int i = 0; i < values.length; ++i )
+			array[ i ] = Long.parseLong( values[ i ].trim() );
+		return array;
+	}
+
+	public long getWidth()
+	{
+		return width;
+	}
+
+	public long getHeight()
+	{
+		return height;
+	}
+
+	public int getBlockWidth()
+	{
+		return blockWidth;
+	}
+
+	public int getBlockHeight()
+	{
+		return blockHeight;
+	}
+
+	public String getSource()
+	{
+		return source;
+	}
+
+	public Encoding getEncoding()
+	{
+		return encoding;
+	}
+
+	public double getPrecision()
+	{
+		return precision;
+	}
+
+	public long numBlocksX()
+	{
+		return ( width + blockWidth - 1 ) / blockWidth;
+	}
+
+	public long numBlocksY()
+	{
+		return ( height + blockHeight - 1 ) / blockHeight;
+	}
+
+	/**
+	 * @return the width of block column bx, blocks at the border are truncated
+	 */
+	public int blockWidth( final long bx )
+	{
+		return ( int )Math.min( blockWidth, width - bx * blockWidth );
+	}
+
+	/**
+	 * @return the height of block row by, blocks at the border are truncated
+	 */
+	public int blockHeight( final long by )
+	{
+		return ( int )Math.min( blockHeight, height - by * blockHeight );
+	}
+
+	private File blockFile( final long bx, final long by )
+	{
+		return new File( base, bx + File.separator + by + File.separator + "0" );
+	}
+
+	private OutputStream compress( final OutputStream out ) throws IOException
+	{
+		return compression.equals( "gzip" ) ? new GZIPOutputStream( out, 1 << 16 ) : out;
+	}
+
+	private InputStream decompress( final InputStream in ) throws IOException
+	{
+		return compression.equals( "gzip" ) ? new GZIPInputStream( in, 1 << 16 ) : in;
+	}
+
+	/**
+	 * Write a block.  Blocks are independent files, so different blocks can
+	 * be written concurrently.
+	 *
+	 * @param bx
+	 * @param by
+	 * @param x x-positions in flat iteration order,
+	 *     {@link #blockWidth(long)} &times; {@link #blockHeight(long)}
+	 * @param y y-positions
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a displacement cannot be
+	 *     represented by the {@link Encoding}
+	 */
+	public void writeBlock( final long bx, final long by, final double[] x, final double[] y ) throws IOException
+	{
+		final int w = blockWidth( bx );
+		final int h = blockHeight( by );
+		final int n = w * h;
+		if ( x.length != n || y.length != n )
+			throw new IllegalArgumentException( "Block (" + bx + ", " + by + ") has " + n + " pixels." );
+
+		final ByteBuffer bytes = ByteBuffer.allocate( n * 2 * encoding.bytes );
+		encode( bytes, x, bx * blockWidth, 0, w, h );
+		encode( bytes, y, by * blockHeight, 1, w, h );
+
+		final File file = blockFile( bx, by );
+		Files.createDirectories( file.getParentFile().toPath() );
+		try ( final DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+		{
+			/* N5 default block header: mode, number of dimensions, block size */
+			dos.writeShort( 0 );
+			dos.writeShort( 3 );
+			dos.writeInt( w );
+			dos.writeInt( h );
+			dos.writeInt( 2 );
+			dos.flush();
+
+			final OutputStream out = compress( dos );
+			out.write( bytes.array() );
+			if ( out instanceof GZIPOutputStream )
+				( ( GZIPOutputStream )out ).finish();
+			out.flush();
+		}
+
+		cache.remove( by * numBlocksX() + bx );
+	}
+
+	/**
+	 * Read a block.
+	 *
+	 * @param bx
+	 * @param by
+	 * @return {x-positions, y-positions} in flat iteration order
+	 * @throws IOException
+	 */
+	public double[][] readBlock( final long bx, final long by ) throws IOException
+	{
+		final File file = blockFile( bx, by );
+		try ( final DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			dis.readShort();
+			final int nd = dis.readShort();
+			long n = 1;
+			for ( int d = 0; d < nd; ++d )
+				n *= dis.readInt();
+			if ( n != 2L * blockWidth( bx ) * blockHeight( by ) )
+				throw new IOException( "Block " + file + " has unexpected size." );
+
+			final byte[] bytes = new byte[ ( int )n * encoding.bytes ];
+			new DataInputStream( decompress( dis ) ).readFully( bytes );
+
+			final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+			final int w = blockWidth( bx );
+			final int h = blockHeight( by );
+			final double[][] block = new double[ 2 ][ ( int )n / 2 ];
+			decode( buffer, block[ 0 ], bx * blockWidth, 0, w, h );
+			decode( buffer, block[ 1 ], by * blockHeight, 1, w, h );
+			return block;
+		}
+	}
+
+	/**
+	 * Append one component of a block to a buffer.
+	 *
+	 * @param bytes
+	 * @param positions
+	 * @param offset grid coordinate of the first pixel in dimension d
+	 * @param d
+	 * @param w
+	 * @param h
+	 */
+	private void encode(
+			final ByteBuffer bytes,
+			final double[] positions,
+			final long offset,
+			final int d,
+			final int w,
+			final int h )
+	{
+		for ( int yi = 0, i = 0; yi < h; ++yi )
+		{
+			for ( int xi = 0; xi < w; ++xi, ++i )
+			{
+				final double displacement = positions[ i ] - ( offset + ( d == 0 ? xi : yi ) );
+				switch ( encoding )
+				{
+				case FLOAT32:
+					bytes.putFloat( ( float )displacement );
+					break;
+				case FLOAT16:
+				{
+					final short half = floatToHalf( ( float )displacement );
+					if ( ( half & 0x7fff ) == 0x7c00 && Double.isFinite( displacement ) )
+						throw new IllegalArgumentException( outOfRange( displacement, xi, yi ) );
+					bytes.putShort( half );
+					break;
+				}
+				case INT16:
+				{
+					final double scaled = displacement / precision;
+					final long quantized = Math.round( scaled );
+					if ( Double.isNaN( scaled ) || quantized < Short.MIN_VALUE || quantized > Short.MAX_VALUE )
+						throw new IllegalArgumentException( outOfRange( displacement, xi, yi ) );
+					bytes.putShort( ( short )quantized );
+					break;
+				}
+				default:
+					bytes.putDouble( positions[ i ] );
+				}
+			}
+		}
+	}
+
+	private String outOfRange( final double displacement, final int xi, final int yi )
+	{
+		return "Displacement " + displacement + " at block pixel (" + xi + ", " + yi + ") cannot be stored as " +
+				encoding + ( encoding == Encoding.INT16 ? " with precision " + precision + ", use a coarser precision or" : ", use" ) +
+				" a wider encoding.";
+	}
+
+	/**
+	 * Read one component of a block from a buffer and reconstruct positions.
+	 *
+	 * @param bytes
+	 * @param positions
+	 * @param offset grid coordinate of the first pixel in dimension d
+	 * @param d
+	 * @param w
+	 * @param h
+	 */
+	private void decode(
+			final ByteBuffer bytes,
+			final double[] positions,
+			final long offset,
+			final int d,
+			final int w,
+			final int h )
+	{
+		for ( int yi = 0, i = 0; yi < h; ++yi )
+		{
+			for ( int xi = 0; xi < w; ++xi, ++i )
+			{
+				final double grid = offset + ( d == 0 ? xi : yi );
+				switch ( encoding )
+				{
+				case FLOAT32:
+					positions[ i ] = grid + bytes.getFloat();
+					break;
+				case FLOAT16:
+					positions[ i ] = grid + halfToFloat( bytes.getShort() );
+					break;
+				case INT16:
+					positions[ i ] = grid + bytes.getShort() * precision;
+					break;
+				default:
+					positions[ i ] = bytes.getDouble();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Convert a float into IEEE 754 half precision, rounding to nearest even.
+	 * Values beyond the half precision range become infinite.
+	 *
+	 * @param f
+	 * @return
+	 */
+	public static short floatToHalf( final float f )
+	{
+		final int bits = Float.floatToRawIntBits( f );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int exponent = ( bits >>> 23 ) & 0xff;
+		int mantissa = bits & 0x7fffff;
+
+		/* infinity and NaN */
+		if ( exponent == 0xff )
+			return ( short )( sign | 0x7c00 | ( mantissa == 0 ? 0 : 0x200 ) );
+
+		final int e = exponent - 127 + 15;
+
+		/* overflow */
+		if ( e >= 0x1f )
+			return ( short )( sign | 0x7c00 );
+
+		/* subnormal or zero */
+		if ( e <= 0 )
+		{
+			if ( e < -10 )
+				return ( short )sign;
+			mantissa |= 0x800000;
+			final int shift = 14 - e;
+			int half = mantissa >>> shift;
+			final int remainder = mantissa & ( ( 1 << shift ) - 1 );
+			final int halfway = 1 << ( shift - 1 );
+			if ( remainder > halfway || ( remainder == halfway && ( half & 1 ) != 0 ) )
+				++half;
+			return ( short )( sign | half );
+		}
+
+		/* a carry from rounding correctly propagates into the exponent */
+		int half = ( e << 10 ) | ( mantissa >>> 13 );
+		final int remainder = mantissa & 0x1fff;
+		if ( remainder > 0x1000 || ( remainder == 0x1000 && ( half & 1 ) != 0 ) )
+			++half;
+		return ( short )( sign | half );
+	}
+
+	/**
+	 * Convert an IEEE 754 half precision value into a float.
+	 *
+	 * @param h
+	 * @return
+	 */
+	public static float halfToFloat( final short h )
+	{
+		final int bits = h & 0xffff;
+		final int sign = ( bits & 0x8000 ) << 16;
+		final int exponent = ( bits >>> 10 ) & 0x1f;
+		final int mantissa = bits & 0x3ff;
+
+		/* infinity and NaN */
+		if ( exponent == 0x1f )
+			return Float.intBitsToFloat( sign | 0x7f800000 | ( mantissa << 13 ) );
+
+		/* subnormal or zero */
+		if ( exponent == 0 )
+		{
+			final float f = mantissa * 0x1p-24f;
+			return sign == 0 ? f : -f;
+		}
+
+		return Float.intBitsToFloat( sign | ( ( exponent + 112 ) << 23 ) | ( mantissa << 13 ) );
+	}
+
+	private double[][] getBlock( final long bx, final long by )
+	{
+		final Long key = by * numBlocksX() + bx;
+		final SoftReference< double[][] > ref = cache.get( key );
+		double[][] block = ref == null ? null : ref.get();
+		if ( block == null )
+		{
+			try
+			{
+				block = readBlock( bx, by );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+			cache.put( key, new SoftReference<>( block ) );
+		}
+		return block;
+	}
+
+	/**
+	 * Write a position field, blocks are generated and written in parallel.
+	 *
+	 * @param xPositions
+	 * @param yPositions
+	 * @throws IOException
+	 */
+	public void write(
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions ) throws IOException
+	{
+		final long numBlocksX = numBlocksX();
+		try
+		{
+			LongStream.range( 0, numBlocksX * numBlocksY() ).parallel().forEach(
+					i -> {
+						final long bx = i % numBlocksX;
+						final long by = i / numBlocksX;
+						final int w = blockWidth( bx );
+						final int h = blockHeight( by );
+						final long x0 = xPositions.min( 0 ) + bx * blockWidth;
+						final long y0 = xPositions.min( 1 ) + by * blockHeight;
+						final double[] x = new double[ w * h ];
+						final double[] y = new double[ w * h ];
+						final RandomAccess< DoubleType > xAccess = xPositions.randomAccess();
+						final RandomAccess< DoubleType > yAccess = yPositions.randomAccess();
+						for ( int yi = 0, j = 0; yi < h; ++yi )
+						{
+							xAccess.setPosition( x0, 0 );
+							xAccess.setPosition( y0 + yi, 1 );
+							yAccess.setPosition( xAccess );
+							for ( int xi = 0; xi < w; ++xi, ++j )
+							{
+								x[ j ] = xAccess.get().get();
+								y[ j ] = yAccess.get().get();
+								xAccess.fwd( 0 );
+								yAccess.fwd( 0 );
+							}
+						}
+						try
+						{
+							writeBlock( bx, by, x, y );
+						}
+						catch ( final IOException e )
+						{
+							throw new UncheckedIOException( e );
+						}
+					} );
+		}
+		catch ( final UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A lazy view of one component of the position field.  Blocks are
+	 * loaded on first access and cached softly.
+	 *
+	 * @param d 0 for x, 1 for y
+	 * @return
+	 */
+	public RandomAccessibleInterval< DoubleType > positions( final int d )
+	{
+		return new PositionsView( d );
+	}
+
+	private class PositionsView extends AbstractInterval implements RandomAccessibleInterval< DoubleType >
+	{
+		private final int component;
+
+		public PositionsView( final int component )
+		{
+			super( new long[]{ width, height } );
+			this.component = component;
+		}
+
+		@Override
+		public PositionsRandomAccess randomAccess()
+		{
+			return new PositionsRandomAccess( component );
+		}
+
+		@Override
+		public PositionsRandomAccess randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+	}
+
+	public class PositionsRandomAccess extends Point implements RandomAccess< DoubleType >
+	{
+		private final int component;
+		private final DoubleType t = new DoubleType();
+
+		/* the block accessed last */
+		private long bx = -1;
+		private long by = -1;
+		private int w;
+		private double[] data;
+
+		public PositionsRandomAccess( final int component )
+		{
+			super( 2 );
+			this.component = component;
+		}
+
+		@Override
+		public DoubleType get()
+		{
+			final long x = position[ 0 ];
+			final long y = position[ 1 ];
+			final long cbx = x / blockWidth;
+			final long cby = y / blockHeight;
+			if ( cbx != bx || cby != by )
+			{
+				bx = cbx;
+				by = cby;
+				w = blockWidth( bx );
+				data = getBlock( bx, by )[ component ];
+			}
+			t.set( data[ ( int )( ( y - by * blockHeight ) * w + x - bx * blockWidth ) ] );
+			return t;
+		}
+
+		@Override
+		public PositionsRandomAccess copy()
+		{
+			final PositionsRandomAccess copy = new PositionsRandomAccess( component );
+			copy.setPosition( this );
+			return copy;
+		}
+
+		@Override
+		public PositionsRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	/**
+	 * Convert a pair of <code>.x.bin</code>/<code>.y.bin</code> files into a
+	 * container.
+	 *
+	 * Usage: <code>PositionFieldContainer xPath yPath width height containerPath [blockSize [encoding [precision]]]</code>
+	 * with encoding one of FLOAT64, FLOAT32, FLOAT16, INT16.
+	 */
+	public static void main( final String... args ) throws IOException
+	{
+		final long width = Long.parseLong( args[ 2 ] );
+		final long height = Long.parseLong( args[ 3 ] );
+		final int blockSize = args.length > 5 ? Integer.parseInt( args[ 5 ] ) : 256;
+		final Encoding encoding = args.length > 6 ? Encoding.valueOf( args[ 6 ] ) : Encoding.FLOAT64;
+		final double precision = args.length > 7 ? Double.parseDouble( args[ 7 ] ) : 1.0 / 64;
+
+		final PositionFieldContainer container = create( args[ 4 ], width, height, blockSize, blockSize, null, encoding, precision );
+		container.write(
+				MappedDoubleRandomAccessibleInterval.open( args[ 0 ], width, height ),
+				MappedDoubleRandomAccessibleInterval.open( args[ 1 ], width, height ) );
+	}
+}
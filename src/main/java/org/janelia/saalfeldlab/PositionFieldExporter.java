@@ -0,0 +1,204 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Exports the position field of a 2D {@link RealTransform} into a pair of
+ * <code>.x.bin</code> and <code>.y.bin</code> files.  The transform is
+ * applied once per pixel for both dimensions.  Blocks of rows are computed
+ * in parallel, each with its own copy of the transform, and are written in
+ * order as soon as they are complete.  At most two blocks per thread are
+ * in flight, so memory is bounded independently of the image size.
+ * Optionally, the rows are also passed through a {@link FlowPyramidWriter}.
+ */
+public class PositionFieldExporter
+{
+	/* pixels per block */
+	final static public int defaultBlockSize = 1 << 20;
+
+	private PositionFieldExporter() {}
+
+	/**
+	 * Compute the positions of rows [y0, y0 + h).
+	 *
+	 * @param transform will be used exclusively by the caller
+	 * @param width
+	 * @param y0
+	 * @param h
+	 * @return
+	 */
+	final static private double[][] computeRows(
+			final RealTransform transform,
+			final int width,
+			final long y0,
+			final int h )
+	{
+		final double[][] positions = new double[ 2 ][ width * h ];
+		final double[] source = new double[ 2 ];
+		final double[] target = new double[ 2 ];
+		for ( int y = 0, i = 0; y < h; ++y )
+		{
+			source[ 1 ] = y0 + y;
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				source[ 0 ] = x;
+				transform.apply( source, target );
+				positions[ 0 ][ i ] = target[ 0 ];
+				positions[ 1 ][ i ] = target[ 1 ];
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Export the position field of a 2D transform.
+	 *
+	 * @param transform
+	 * @param width
+	 * @param height
+	 * @param xPath
+	 * @param yPath
+	 * @param pyramid receives all rows in order, may be null, is not closed
+	 * @param numThreads
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void export(
+			final RealTransform transform,
+			final int width,
+			final long height,
+			final String xPath,
+			final String yPath,
+			final FlowPyramidWriter pyramid,
+			final int numThreads ) throws IOException, InterruptedException
+	{
+		final int rowsPerBlock = Math.max( 1, defaultBlockSize / width );
+		final int maxInFlight = 2 * numThreads;
+
+		final File xFile = new File( xPath ).getAbsoluteFile();
+		final File yFile = new File( yPath ).getAbsoluteFile();
+		xFile.getParentFile().mkdirs();
+		yFile.getParentFile().mkdirs();
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( PositionFieldIO.bufferSize );
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try (
+				final FileChannel xChannel = FileChannel.open(
+						xFile.toPath(),
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING );
+				final FileChannel yChannel = FileChannel.open(
+						yFile.toPath(),
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			final ArrayDeque< Future< double[][] > > futures = new ArrayDeque<>();
+			long written = 0;
+			for ( long y0 = 0; y0 < height || !futures.isEmpty(); )
+			{
+				while ( y0 < height && futures.size() < maxInFlight )
+				{
+					final long y = y0;
+					final int h = ( int )Math.min( rowsPerBlock, height - y0 );
+
+					/* copy here, copying is not guaranteed to be thread safe */
+					final RealTransform blockTransform = transform.copy();
+					futures.add( exec.submit( () -> computeRows( blockTransform, width, y, h ) ) );
+					y0 += h;
+				}
+
+				final double[][] positions = futures.poll().get();
+				PositionFieldIO.writeDoubles( xChannel, positions[ 0 ], 0, positions[ 0 ].length, buffer );
+				PositionFieldIO.writeDoubles( yChannel, positions[ 1 ], 0, positions[ 1 ].length, buffer );
+
+				final int h = positions[ 0 ].length / width;
+				if ( pyramid != null )
+					pyramid.addRows( positions, written, h );
+				written += h;
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Export the position field of a 2D transform using all available
+	 * processors.
+	 *
+	 * @param transform
+	 * @param width
+	 * @param height
+	 * @param xPath
+	 * @param yPath
+	 * @param pyramid receives all rows in order, may be null, is not closed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void export(
+			final RealTransform transform,
+			final int width,
+			final long height,
+			final String xPath,
+			final String yPath,
+			final FlowPyramidWriter pyramid ) throws IOException, InterruptedException
+	{
+		export( transform, width, height, xPath, yPath, pyramid, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Export the position field of a 2D transform using all available
+	 * processors.
+	 *
+	 * @param transform
+	 * @param width
+	 * @param height
+	 * @param xPath
+	 * @param yPath
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void export(
+			final RealTransform transform,
+			final int width,
+			final long height,
+			final String xPath,
+			final String yPath ) throws IOException, InterruptedException
+	{
+		export( transform, width, height, xPath, yPath, null );
+	}
+}
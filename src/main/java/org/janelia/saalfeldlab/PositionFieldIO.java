@@ -0,0 +1,306 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Bulk I/O for position fields stored as raw big-endian doubles in flat
+ * iteration order, i.e. the <code>.x.bin</code> and <code>.y.bin</code>
+ * files.  All data is moved through a {@link FileChannel} in large chunks
+ * of a direct {@link ByteBuffer}.  The on-disk format is identical to that
+ * written by {@link java.io.DataOutputStream#writeDouble(double)}.
+ */
+public class PositionFieldIO
+{
+	/* in bytes, a multiple of 8 */
+	final static public int bufferSize = 1 << 22;
+
+	private PositionFieldIO() {}
+
+	final static private File createFile( final String filePath ) throws IOException
+	{
+		final File file = new File( filePath );
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if ( !parent.exists() )
+			parent.mkdirs();
+
+		return file;
+	}
+
+	final static private void writeFully( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+	/**
+	 * Read from a channel until the buffer is full.
+	 */
+	final static private void readFully( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer ) < 0 )
+				throw new IOException( "Unexpected end of file." );
+	}
+
+	/**
+	 * Read from a channel at a position until the buffer is full.  Does not
+	 * modify the position of the channel, i.e. concurrent reads through the
+	 * same channel are safe.
+	 */
+	final static private void readFully( final FileChannel channel, final ByteBuffer buffer, long position ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, position );
+			if ( n < 0 )
+				throw new IOException( "Unexpected end of file." );
+			position += n;
+		}
+	}
+
+	/**
+	 * Write a double array as raw big-endian doubles.
+	 *
+	 * @param filePath
+	 * @param data
+	 * @throws IOException
+	 */
+	public static void writeDoubles( final String filePath, final double[] data ) throws IOException
+	{
+		final File file = createFile( filePath );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize );
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		try ( final FileChannel channel = FileChannel.open(
+				file.toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			for ( int i = 0; i < data.length; )
+			{
+				final int n = Math.min( doubles.capacity(), data.length - i );
+				doubles.clear();
+				doubles.put( data, i, n );
+				buffer.clear();
+				buffer.limit( n * 8 );
+				writeFully( channel, buffer );
+				i += n;
+			}
+		}
+	}
+
+	/**
+	 * Write a float array as raw big-endian floats.
+	 *
+	 * @param filePath
+	 * @param data
+	 * @throws IOException
+	 */
+	public static void writeFloats( final String filePath, final float[] data ) throws IOException
+	{
+		final File file = createFile( filePath );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize );
+		final FloatBuffer floats = buffer.asFloatBuffer();
+		try ( final FileChannel channel = FileChannel.open(
+				file.toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			for ( int i = 0; i < data.length; )
+			{
+				final int n = Math.min( floats.capacity(), data.length - i );
+				floats.clear();
+				floats.put( data, i, n );
+				buffer.clear();
+				buffer.limit( n * 4 );
+				writeFully( channel, buffer );
+				i += n;
+			}
+		}
+	}
+
+	/**
+	 * Write a stream of {@link DoubleType DoubleTypes} as raw big-endian
+	 * doubles.
+	 *
+	 * @param filePath
+	 * @param stream
+	 * @throws IOException
+	 */
+	public static void writeDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
+	{
+		final File file = createFile( filePath );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize );
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		try ( final FileChannel channel = FileChannel.open(
+				file.toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			final Iterator< DoubleType > iterator = stream.iterator();
+			while ( iterator.hasNext() )
+			{
+				doubles.clear();
+				while ( doubles.hasRemaining() && iterator.hasNext() )
+					doubles.put( iterator.next().get() );
+				buffer.clear();
+				buffer.limit( doubles.position() * 8 );
+				writeFully( channel, buffer );
+			}
+		}
+	}
+
+	/**
+	 * Append a range of a double array to an open channel as raw big-endian
+	 * doubles.
+	 *
+	 * @param channel
+	 * @param data
+	 * @param dataOffset
+	 * @param length
+	 * @param buffer direct buffer for the transfer, capacity a multiple of 8
+	 * @throws IOException
+	 */
+	public static void writeDoubles(
+			final FileChannel channel,
+			final double[] data,
+			final int dataOffset,
+			final int length,
+			final ByteBuffer buffer ) throws IOException
+	{
+		buffer.clear();
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		for ( int i = 0; i < length; )
+		{
+			final int n = Math.min( doubles.capacity(), length - i );
+			doubles.clear();
+			doubles.put( data, dataOffset + i, n );
+			buffer.clear();
+			buffer.limit( n * 8 );
+			writeFully( channel, buffer );
+			i += n;
+		}
+	}
+
+	/**
+	 * Read raw big-endian doubles into an array.  Reads exactly
+	 * <code>data.length</code> values.
+	 *
+	 * @param filePath
+	 * @param data
+	 * @throws IOException
+	 */
+	public static void readDoubles( final String filePath, final double[] data ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize );
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		try ( final FileChannel channel = FileChannel.open( new File( filePath ).toPath(), StandardOpenOption.READ ) )
+		{
+			for ( int i = 0; i < data.length; )
+			{
+				final int n = Math.min( doubles.capacity(), data.length - i );
+				buffer.clear();
+				buffer.limit( n * 8 );
+				readFully( channel, buffer );
+				doubles.clear();
+				doubles.get( data, i, n );
+				i += n;
+			}
+		}
+	}
+
+	/**
+	 * Read raw big-endian doubles into a stream of
+	 * {@link DoubleType DoubleTypes}.
+	 *
+	 * @param filePath
+	 * @param stream
+	 * @throws IOException
+	 */
+	public static void readDoubles( final String filePath, final Iterable< DoubleType > stream ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize );
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		try ( final FileChannel channel = FileChannel.open( new File( filePath ).toPath(), StandardOpenOption.READ ) )
+		{
+			doubles.limit( 0 );
+			for ( final DoubleType t : stream )
+			{
+				if ( !doubles.hasRemaining() )
+				{
+					final long remaining = channel.size() - channel.position();
+					if ( remaining < 8 )
+						throw new IOException( "Unexpected end of file." );
+					buffer.clear();
+					buffer.limit( ( int )Math.min( buffer.capacity(), remaining / 8 * 8 ) );
+					readFully( channel, buffer );
+					doubles.clear();
+					doubles.limit( buffer.limit() / 8 );
+				}
+				t.set( doubles.get() );
+			}
+		}
+	}
+
+	/**
+	 * Read a range of raw big-endian doubles from an open channel.  Uses
+	 * positional reads, so several threads can read through the same
+	 * channel concurrently, each with its own buffer.
+	 *
+	 * @param channel
+	 * @param offset first value to read (in values, not bytes)
+	 * @param data
+	 * @param dataOffset
+	 * @param length
+	 * @param buffer direct buffer for the transfer, capacity a multiple of 8
+	 * @throws IOException
+	 */
+	public static void readDoubles(
+			final FileChannel channel,
+			final long offset,
+			final double[] data,
+			final int dataOffset,
+			final int length,
+			final ByteBuffer buffer ) throws IOException
+	{
+		buffer.clear();
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		for ( int i = 0; i < length; )
+		{
+			final int n = Math.min( doubles.capacity(), length - i );
+			buffer.clear();
+			buffer.limit( n * 8 );
+			readFully( channel, buffer, ( offset + i ) * 8 );
+			doubles.clear();
+			doubles.get( data, dataOffset + i, n );
+			i += n;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link PositionFieldIO} with the per-value
+ * {@link DataOutputStream}/{@link DataInputStream} path that was used to
+ * write and read <code>.x.bin</code>/<code>.y.bin</code> files.
+ *
+ * Usage: <code>PositionFieldIOBenchmark [width height [directory]]</code>
+ */
+public class PositionFieldIOBenchmark
+{
+	private static final void writeDoublesStream( final String filePath, final double[] data ) throws IOException
+	{
+		try ( final DataOutputStream dos = new DataOutputStream( new FileOutputStream( filePath ) ) )
+		{
+			for ( final double d : data )
+				dos.writeDouble( d );
+		}
+	}
+
+	private static final void readDoublesStream( final String filePath, final double[] data ) throws IOException
+	{
+		try ( final DataInputStream dis = new DataInputStream( new FileInputStream( filePath ) ) )
+		{
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = dis.readDouble();
+		}
+	}
+
+	public static void main( final String... args ) throws IOException
+	{
+		final int width = args.length > 1 ? Integer.parseInt( args[ 0 ] ) : 2048;
+		final int height = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 2048;
+		final File dir = args.length > 2 ? new File( args[ 2 ] ) : new File( System.getProperty( "java.io.tmpdir" ) );
+
+		final double[] data = new double[ width * height ];
+		final Random rnd = new Random( 0 );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i % width + rnd.nextGaussian();
+
+		final String streamPath = new File( dir, "position-field-stream.x.bin" ).getAbsolutePath();
+		final String nioPath = new File( dir, "position-field-nio.x.bin" ).getAbsolutePath();
+
+		final double[] streamData = new double[ data.length ];
+		final double[] nioData = new double[ data.length ];
+
+		long t = System.nanoTime();
+		writeDoublesStream( streamPath, data );
+		System.out.println( String.format( "stream write : %8.1f ms", ( System.nanoTime() - t ) / 1e6 ) );
+
+		t = System.nanoTime();
+		PositionFieldIO.writeDoubles( nioPath, data );
+		System.out.println( String.format( "nio write    : %8.1f ms", ( System.nanoTime() - t ) / 1e6 ) );
+
+		t = System.nanoTime();
+		readDoublesStream( streamPath, streamData );
+		System.out.println( String.format( "stream read  : %8.1f ms", ( System.nanoTime() - t ) / 1e6 ) );
+
+		t = System.nanoTime();
+		PositionFieldIO.readDoubles( nioPath, nioData );
+		System.out.println( String.format( "nio read     : %8.1f ms", ( System.nanoTime() - t ) / 1e6 ) );
+
+		final boolean readersAgree = Arrays.equals( data, streamData ) && Arrays.equals( data, nioData );
+
+		/* both files must be byte identical and each reader must read the other's file */
+		final boolean filesIdentical = Arrays.equals( Files.readAllBytes( Paths.get( streamPath ) ), Files.readAllBytes( Paths.get( nioPath ) ) );
+		readDoublesStream( nioPath, streamData );
+		PositionFieldIO.readDoubles( streamPath, nioData );
+		final boolean crossReadersAgree = Arrays.equals( data, streamData ) && Arrays.equals( data, nioData );
+
+		System.out.println( "files identical   : " + filesIdentical );
+		System.out.println( "readers agree     : " + ( readersAgree && crossReadersAgree ) );
+
+		new File( streamPath ).delete();
+		new File( nioPath ).delete();
+	}
+}
@@ -0,0 +1,312 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Inverts a 2D position field as used by {@link PositionFieldTransform},
+ * i.e. for each pixel q of the source, finds the target position p with
+ * F(p) = q where F is the linearly interpolated field.
+ *
+ * Each pixel is solved by Newton iteration with a central difference
+ * Jacobian and step halving, falling back to the fixed-point step
+ * p - (F(p) - q) where the Jacobian is singular.  The inverse is first
+ * solved on a coarse grid, seeded with the negated displacement.  The
+ * bilinear interpolation of the coarse inverse then seeds the dense pixels,
+ * so that most of them converge in one or two iterations.  Rows are solved
+ * in parallel.  The residual |F(p) - q| and the number of iterations are
+ * reported per pixel.
+ */
+public class PositionFieldInverter
+{
+	final static private int rowsPerBlock = 16;
+	final static private int maxHalvings = 4;
+	final static private double h = 0.5;
+
+	/**
+	 * A dense inverse field with per-pixel convergence.
+	 */
+	public static class Inverse
+	{
+		final public int width;
+		final public int height;
+		final public double[] x;
+		final public double[] y;
+		/* |F(p) - q| after the last iteration */
+		final public float[] residuals;
+		final public byte[] iterations;
+
+		private Inverse( final int width, final int height )
+		{
+			this.width = width;
+			this.height = height;
+			x = new double[ width * height ];
+			y = new double[ width * height ];
+			residuals = new float[ width * height ];
+			iterations = new byte[ width * height ];
+		}
+
+		/**
+		 * @param tolerance
+		 * @return number of pixels whose residual is above tolerance
+		 */
+		public long numNotConverged( final double tolerance )
+		{
+			return IntStream.range( 0, residuals.length ).parallel().filter( i -> !( residuals[ i ] <= tolerance ) ).count();
+		}
+	}
+
+	/**
+	 * Per thread Newton solver.
+	 */
+	final static private class Solver
+	{
+		final RealRandomAccess< DoubleType > xAccess;
+		final RealRandomAccess< DoubleType > yAccess;
+		final double tolerance;
+		final int maxIterations;
+		final double[] f = new double[ 2 ];
+		int iterations;
+
+		Solver(
+				final RealRandomAccessible< DoubleType > xField,
+				final RealRandomAccessible< DoubleType > yField,
+				final double tolerance,
+				final int maxIterations )
+		{
+			xAccess = xField.realRandomAccess();
+			yAccess = yField.realRandomAccess();
+			this.tolerance = tolerance;
+			this.maxIterations = maxIterations;
+		}
+
+		void field( final double px, final double py )
+		{
+			xAccess.setPosition( px, 0 );
+			xAccess.setPosition( py, 1 );
+			yAccess.setPosition( px, 0 );
+			yAccess.setPosition( py, 1 );
+			f[ 0 ] = xAccess.get().get();
+			f[ 1 ] = yAccess.get().get();
+		}
+
+		/**
+		 * @param qx
+		 * @param qy
+		 * @param p seed, replaced by the solution
+		 * @return residual
+		 */
+		double solve( final double qx, final double qy, final double[] p )
+		{
+			field( p[ 0 ], p[ 1 ] );
+			double rx = f[ 0 ] - qx;
+			double ry = f[ 1 ] - qy;
+			double r = Math.sqrt( rx * rx + ry * ry );
+
+			for ( iterations = 0; iterations < maxIterations && r > tolerance; ++iterations )
+			{
+				field( p[ 0 ] + h, p[ 1 ] );
+				final double fxpx = f[ 0 ], fypx = f[ 1 ];
+				field( p[ 0 ] - h, p[ 1 ] );
+				final double j00 = ( fxpx - f[ 0 ] ) / ( 2 * h );
+				final double j10 = ( fypx - f[ 1 ] ) / ( 2 * h );
+				field( p[ 0 ], p[ 1 ] + h );
+				final double fxpy = f[ 0 ], fypy = f[ 1 ];
+				field( p[ 0 ], p[ 1 ] - h );
+				final double j01 = ( fxpy - f[ 0 ] ) / ( 2 * h );
+				final double j11 = ( fypy - f[ 1 ] ) / ( 2 * h );
+
+				final double det = j00 * j11 - j01 * j10;
+				double sx, sy;
+				if ( Math.abs( det ) < 1e-12 )
+				{
+					sx = rx;
+					sy = ry;
+				}
+				else
+				{
+					sx = ( j11 * rx - j01 * ry ) / det;
+					sy = ( j00 * ry - j10 * rx ) / det;
+				}
+
+				/* step halving until the residual decreases */
+				double px = p[ 0 ] - sx, py = p[ 1 ] - sy;
+				field( px, py );
+				double nrx = f[ 0 ] - qx, nry = f[ 1 ] - qy;
+				double nr = Math.sqrt( nrx * nrx + nry * nry );
+				for ( int k = 0; k < maxHalvings && !( nr < r ); ++k )
+				{
+					sx *= 0.5;
+					sy *= 0.5;
+					px = p[ 0 ] - sx;
+					py = p[ 1 ] - sy;
+					field( px, py );
+					nrx = f[ 0 ] - qx;
+					nry = f[ 1 ] - qy;
+					nr = Math.sqrt( nrx * nrx + nry * nry );
+				}
+				if ( !( nr < r ) )
+				{
+					++iterations;
+					break;
+				}
+
+				p[ 0 ] = px;
+				p[ 1 ] = py;
+				rx = nrx;
+				ry = nry;
+				r = nr;
+			}
+			return r;
+		}
+	}
+
+	private PositionFieldInverter() {}
+
+	private static double interpolate( final double[] coarse, final int coarseWidth, final double cx, final double cy )
+	{
+		final int ix = ( int )cx;
+		final int iy = ( int )cy;
+		final double dx = cx - ix;
+		final double dy = cy - iy;
+		final int i = iy * coarseWidth + ix;
+		final double a = coarse[ i ] + ( coarse[ i + 1 ] - coarse[ i ] ) * dx;
+		final double b = coarse[ i + coarseWidth ] + ( coarse[ i + coarseWidth + 1 ] - coarse[ i + coarseWidth ] ) * dx;
+		return a + ( b - a ) * dy;
+	}
+
+	/**
+	 * Invert a position field.
+	 *
+	 * @param xPositions
+	 * @param yPositions
+	 * @param width of the inverse, i.e. of the source image
+	 * @param height of the inverse, i.e. of the source image
+	 * @param coarseStep grid spacing of the coarse seed in px
+	 * @param tolerance residual in px at which a pixel is converged
+	 * @param maxIterations per pixel, at most 127
+	 * @return
+	 */
+	public static Inverse invert(
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final int width,
+			final int height,
+			final int coarseStep,
+			final double tolerance,
+			final int maxIterations )
+	{
+		final NLinearInterpolatorFactory< DoubleType > interpolatorFactory = new NLinearInterpolatorFactory<>();
+		final RealRandomAccessible< DoubleType > xField = Views.interpolate( Views.extendBorder( xPositions ), interpolatorFactory );
+		final RealRandomAccessible< DoubleType > yField = Views.interpolate( Views.extendBorder( yPositions ), interpolatorFactory );
+
+		/* coarse grid covering the whole source, seeded with the negated displacement */
+		final int coarseWidth = ( width - 1 + coarseStep - 1 ) / coarseStep + 2;
+		final int coarseHeight = ( height - 1 + coarseStep - 1 ) / coarseStep + 2;
+		final double[] coarseX = new double[ coarseWidth * coarseHeight ];
+		final double[] coarseY = new double[ coarseWidth * coarseHeight ];
+		IntStream.range( 0, coarseHeight ).parallel().forEach(
+				cy -> {
+					final Solver solver = new Solver( xField, yField, tolerance, 4 * maxIterations );
+					final double[] p = new double[ 2 ];
+					for ( int cx = 0, i = cy * coarseWidth; cx < coarseWidth; ++cx, ++i )
+					{
+						final double qx = cx * coarseStep;
+						final double qy = cy * coarseStep;
+						solver.field( qx, qy );
+						p[ 0 ] = 2 * qx - solver.f[ 0 ];
+						p[ 1 ] = 2 * qy - solver.f[ 1 ];
+						solver.solve( qx, qy, p );
+						coarseX[ i ] = p[ 0 ];
+						coarseY[ i ] = p[ 1 ];
+					}
+				} );
+
+		/* dense pixels seeded from the coarse inverse */
+		final Inverse inverse = new Inverse( width, height );
+		final int numBlocks = ( height + rowsPerBlock - 1 ) / rowsPerBlock;
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				block -> {
+					final Solver solver = new Solver( xField, yField, tolerance, maxIterations );
+					final double[] p = new double[ 2 ];
+					final int maxY = Math.min( height, ( block + 1 ) * rowsPerBlock );
+					for ( int y = block * rowsPerBlock; y < maxY; ++y )
+					{
+						final double cy = ( double )y / coarseStep;
+						for ( int x = 0, i = y * width; x < width; ++x, ++i )
+						{
+							final double cx = ( double )x / coarseStep;
+							p[ 0 ] = interpolate( coarseX, coarseWidth, cx, cy );
+							p[ 1 ] = interpolate( coarseY, coarseWidth, cx, cy );
+							inverse.residuals[ i ] = ( float )solver.solve( x, y, p );
+							inverse.iterations[ i ] = ( byte )Math.min( Byte.MAX_VALUE, solver.iterations );
+							inverse.x[ i ] = p[ 0 ];
+							inverse.y[ i ] = p[ 1 ];
+						}
+					}
+				} );
+
+		return inverse;
+	}
+
+	/**
+	 * Usage: <code>PositionFieldInverter xPath yPath width height inverseWidth inverseHeight inverseBasePath [tolerance]</code>
+	 *
+	 * Writes <code>inverseBasePath.x.bin</code> and
+	 * <code>inverseBasePath.y.bin</code>, the residuals |F(p) - q| as raw
+	 * big-endian floats to <code>inverseBasePath.residual.bin</code> and the
+	 * number of iterations as bytes to
+	 * <code>inverseBasePath.iterations.bin</code>, so that pixels that did
+	 * not converge can be masked.
+	 */
+	public static void main( final String... args ) throws IOException
+	{
+		final long width = Long.parseLong( args[ 2 ] );
+		final long height = Long.parseLong( args[ 3 ] );
+		final int inverseWidth = Integer.parseInt( args[ 4 ] );
+		final int inverseHeight = Integer.parseInt( args[ 5 ] );
+		final double tolerance = args.length > 7 ? Double.parseDouble( args[ 7 ] ) : 0.01;
+
+		final long t = System.currentTimeMillis();
+		final Inverse inverse = invert(
+				MappedDoubleRandomAccessibleInterval.open( args[ 0 ], width, height ),
+				MappedDoubleRandomAccessibleInterval.open( args[ 1 ], width, height ),
+				inverseWidth,
+				inverseHeight,
+				16,
+				tolerance,
+				16 );
+		IJ.log( "Inverted in " + ( System.currentTimeMillis() - t ) + "ms, " + inverse.numNotConverged( tolerance ) + " pixels did not converge." );
+
+		PositionFieldIO.writeDoubles( args[ 6 ] + ".x.bin", inverse.x );
+		PositionFieldIO.writeDoubles( args[ 6 ] + ".y.bin", inverse.y );
+		PositionFieldIO.writeFloats( args[ 6 ] + ".residual.bin", inverse.residuals );
+		Files.write( Paths.get( args[ 6 ] + ".iterations.bin" ), inverse.iterations );
+	}
+}
@@ -0,0 +1,394 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.FloatProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * An adaptive piecewise affine approximation of a 2D position field.  The
+ * field is covered by a quadtree of rectangular cells whose corners are
+ * field samples.  Each cell is split into two triangles along its
+ * anti-diagonal, and each triangle maps affinely.  Cells are subdivided until
+ * the approximation is within a maximal error at all field samples that they
+ * cover.  Smooth regions are therefore covered by few large cells.
+ *
+ * mpicbg's {@link mpicbg.models.TransformMesh} supports regular grids only,
+ * so this class comes with its own renderer.  The renderer processes cells
+ * in parallel and evaluates the affines incrementally instead of looking up
+ * two interpolated positions per pixel.  Neighboring cells of different
+ * sizes do not share all vertices, so the mapping may be discontinuous by up
+ * to twice the maximal error along their common edges.
+ */
+public class PositionFieldMesh
+{
+	/**
+	 * A leaf of the quadtree with corner positions a = (x0, y0),
+	 * b = (x1, y0), c = (x0, y1), d = (x1, y1).
+	 */
+	final static private class Cell
+	{
+		final int x0, y0, x1, y1;
+		final double ax, ay, bx, by, cx, cy, dx, dy;
+
+		Cell(
+				final int x0, final int y0, final int x1, final int y1,
+				final double ax, final double ay,
+				final double bx, final double by,
+				final double cx, final double cy,
+				final double dx, final double dy )
+		{
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.ax = ax;
+			this.ay = ay;
+			this.bx = bx;
+			this.by = by;
+			this.cx = cx;
+			this.cy = cy;
+			this.dx = dx;
+			this.dy = dy;
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final List< Cell > cells;
+
+	private PositionFieldMesh( final int width, final int height, final List< Cell > cells )
+	{
+		this.width = width;
+		this.height = height;
+		this.cells = cells;
+	}
+
+	/**
+	 * Field samples of one root cell, including its far edges.
+	 */
+	final static private class Block
+	{
+		final int x0, y0, w, h;
+		final double[] xs, ys;
+
+		Block(
+				final RandomAccessibleInterval< DoubleType > xPositions,
+				final RandomAccessibleInterval< DoubleType > yPositions,
+				final int x0,
+				final int y0,
+				final int x1,
+				final int y1 )
+		{
+			this.x0 = x0;
+			this.y0 = y0;
+			w = x1 - x0 + 1;
+			h = y1 - y0 + 1;
+			xs = new double[ w * h ];
+			ys = new double[ w * h ];
+			final RandomAccess< DoubleType > xAccess = xPositions.randomAccess();
+			final RandomAccess< DoubleType > yAccess = yPositions.randomAccess();
+			for ( int y = 0, i = 0; y < h; ++y )
+			{
+				xAccess.setPosition( y0 + y, 1 );
+				yAccess.setPosition( y0 + y, 1 );
+				for ( int x = 0; x < w; ++x, ++i )
+				{
+					xAccess.setPosition( x0 + x, 0 );
+					yAccess.setPosition( x0 + x, 0 );
+					xs[ i ] = xAccess.get().get();
+					ys[ i ] = yAccess.get().get();
+				}
+			}
+		}
+
+		int index( final int x, final int y )
+		{
+			return ( y - y0 ) * w + x - x0;
+		}
+	}
+
+	/**
+	 * Approximate the field with a cell with the given corners or split it.
+	 */
+	private static void fit(
+			final Block block,
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1,
+			final double maxError,
+			final List< Cell > cells )
+	{
+		final int ia = block.index( x0, y0 );
+		final int ib = block.index( x1, y0 );
+		final int ic = block.index( x0, y1 );
+		final int id = block.index( x1, y1 );
+		final Cell cell = new Cell(
+				x0, y0, x1, y1,
+				block.xs[ ia ], block.ys[ ia ],
+				block.xs[ ib ], block.ys[ ib ],
+				block.xs[ ic ], block.ys[ ic ],
+				block.xs[ id ], block.ys[ id ] );
+
+		final boolean splitX = x1 - x0 > 1;
+		final boolean splitY = y1 - y0 > 1;
+		if ( ( splitX || splitY ) && error( block, cell ) > maxError )
+		{
+			final int xm = splitX ? ( x0 + x1 ) / 2 : x1;
+			final int ym = splitY ? ( y0 + y1 ) / 2 : y1;
+			fit( block, x0, y0, xm, ym, maxError, cells );
+			if ( splitX )
+				fit( block, xm, y0, x1, ym, maxError, cells );
+			if ( splitY )
+				fit( block, x0, ym, xm, y1, maxError, cells );
+			if ( splitX && splitY )
+				fit( block, xm, ym, x1, y1, maxError, cells );
+		}
+		else
+			cells.add( cell );
+	}
+
+	/**
+	 * Scale from pixels to the unit cell.  Cells of fields that are one
+	 * pixel wide or high have zero extent, their samples are all at u = 0
+	 * or v = 0.
+	 */
+	private static double inverse( final int length )
+	{
+		return length == 0 ? 0 : 1.0 / length;
+	}
+
+	/**
+	 * Maximal distance between the field samples covered by a cell and
+	 * their approximation.
+	 */
+	private static double error( final Block block, final Cell cell )
+	{
+		final double su = inverse( cell.x1 - cell.x0 );
+		final double sv = inverse( cell.y1 - cell.y0 );
+		double maxSquare = 0;
+		for ( int y = cell.y0; y <= cell.y1; ++y )
+		{
+			final double v = ( y - cell.y0 ) * sv;
+			for ( int x = cell.x0, i = block.index( x, y ); x <= cell.x1; ++x, ++i )
+			{
+				final double u = ( x - cell.x0 ) * su;
+				final double px, py;
+				if ( u + v <= 1 )
+				{
+					px = cell.ax + ( cell.bx - cell.ax ) * u + ( cell.cx - cell.ax ) * v;
+					py = cell.ay + ( cell.by - cell.ay ) * u + ( cell.cy - cell.ay ) * v;
+				}
+				else
+				{
+					px = cell.dx + ( cell.cx - cell.dx ) * ( 1 - u ) + ( cell.bx - cell.dx ) * ( 1 - v );
+					py = cell.dy + ( cell.cy - cell.dy ) * ( 1 - u ) + ( cell.by - cell.dy ) * ( 1 - v );
+				}
+				final double ex = px - block.xs[ i ];
+				final double ey = py - block.ys[ i ];
+				maxSquare = Math.max( maxSquare, ex * ex + ey * ey );
+			}
+		}
+		return Math.sqrt( maxSquare );
+	}
+
+	/**
+	 * Fit a mesh to a position field.  Root cells are fitted in parallel.
+	 *
+	 * @param xPositions
+	 * @param yPositions
+	 * @param maxError in px
+	 * @param maxCellSize edge length of the root cells in px
+	 * @return
+	 */
+	public static PositionFieldMesh fit(
+			final RandomAccessibleInterval< DoubleType > xPositions,
+			final RandomAccessibleInterval< DoubleType > yPositions,
+			final double maxError,
+			final int maxCellSize )
+	{
+		final int width = ( int )xPositions.dimension( 0 );
+		final int height = ( int )xPositions.dimension( 1 );
+		if ( width < 1 || height < 1 )
+			throw new IllegalArgumentException( "Empty position field." );
+		final int numRootsX = Math.max( 1, ( width - 1 + maxCellSize - 1 ) / maxCellSize );
+		final int numRootsY = Math.max( 1, ( height - 1 + maxCellSize - 1 ) / maxCellSize );
+
+		final List< Cell > cells = IntStream.range( 0, numRootsX * numRootsY ).parallel().mapToObj(
+				r -> {
+					final int x0 = ( r % numRootsX ) * maxCellSize;
+					final int y0 = ( r / numRootsX ) * maxCellSize;
+					final int x1 = Math.min( width - 1, x0 + maxCellSize );
+					final int y1 = Math.min( height - 1, y0 + maxCellSize );
+					final Block block = new Block( xPositions, yPositions, x0, y0, x1, y1 );
+					final ArrayList< Cell > rootCells = new ArrayList<>();
+					fit( block, x0, y0, x1, y1, maxError, rootCells );
+					return rootCells;
+				} ).flatMap( List::stream ).collect( Collectors.toList() );
+
+		return new PositionFieldMesh( width, height, Collections.unmodifiableList( cells ) );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int numCells()
+	{
+		return cells.size();
+	}
+
+	public int numTriangles()
+	{
+		return 2 * cells.size();
+	}
+
+	/**
+	 * Render a source through the mesh with bilinear interpolation and
+	 * border extension.  Each pixel is rendered by exactly one cell: cells
+	 * own their left and top edge, and the far edges of the field.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public FloatProcessor render( final FloatProcessor source )
+	{
+		final float[] sourcePixels = ( float[] )source.getPixels();
+		final int sourceWidth = source.getWidth();
+		final int sourceHeight = source.getHeight();
+
+		final FloatProcessor target = new FloatProcessor( width, height );
+		final float[] targetPixels = ( float[] )target.getPixels();
+
+		IntStream.range( 0, cells.size() ).parallel().forEach(
+				c -> {
+					final Cell cell = cells.get( c );
+					final double su = inverse( cell.x1 - cell.x0 );
+					final double sv = inverse( cell.y1 - cell.y0 );
+					final int xMax = cell.x1 == width - 1 ? cell.x1 : cell.x1 - 1;
+					final int yMax = cell.y1 == height - 1 ? cell.y1 : cell.y1 - 1;
+
+					/* per pixel increments of both affines in x */
+					final double aDxX = ( cell.bx - cell.ax ) * su;
+					final double aDyX = ( cell.by - cell.ay ) * su;
+					final double dDxX = ( cell.dx - cell.cx ) * su;
+					final double dDyX = ( cell.dy - cell.cy ) * su;
+
+					for ( int y = cell.y0; y <= yMax; ++y )
+					{
+						final double v = ( y - cell.y0 ) * sv;
+
+						/* both affines at u = 0 */
+						double apx = cell.ax + ( cell.cx - cell.ax ) * v;
+						double apy = cell.ay + ( cell.cy - cell.ay ) * v;
+						double dpx = cell.dx + ( cell.cx - cell.dx ) + ( cell.bx - cell.dx ) * ( 1 - v );
+						double dpy = cell.dy + ( cell.cy - cell.dy ) + ( cell.by - cell.dy ) * ( 1 - v );
+
+						for ( int x = cell.x0, i = y * width + x; x <= xMax; ++x, ++i )
+						{
+							final double u = ( x - cell.x0 ) * su;
+							targetPixels[ i ] = u + v <= 1 ?
+									interpolate( sourcePixels, sourceWidth, sourceHeight, apx, apy ) :
+									interpolate( sourcePixels, sourceWidth, sourceHeight, dpx, dpy );
+							apx += aDxX;
+							apy += aDyX;
+							dpx += dDxX;
+							dpy += dDyX;
+						}
+					}
+				} );
+
+		return target;
+	}
+
+	private static int clamp( final int x, final int size )
+	{
+		return Math.max( 0, Math.min( size - 1, x ) );
+	}
+
+	/**
+	 * Bilinear interpolation with border extension, equivalent to
+	 * NLinearInterpolatorFactory over extendBorder.
+	 */
+	private static float interpolate(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final double x,
+			final double y )
+	{
+		final double fx = Math.floor( x );
+		final double fy = Math.floor( y );
+		final double dx = x - fx;
+		final double dy = y - fy;
+		final int ix0 = clamp( ( int )fx, width );
+		final int ix1 = clamp( ( int )fx + 1, width );
+		final int iy0 = clamp( ( int )fy, height ) * width;
+		final int iy1 = clamp( ( int )fy + 1, height ) * width;
+		final double a = pixels[ iy0 + ix0 ] + ( pixels[ iy0 + ix1 ] - pixels[ iy0 + ix0 ] ) * dx;
+		final double b = pixels[ iy1 + ix0 ] + ( pixels[ iy1 + ix1 ] - pixels[ iy1 + ix0 ] ) * dx;
+		return ( float )( a + ( b - a ) * dy );
+	}
+
+	/**
+	 * Usage: <code>PositionFieldMesh source.tif xPath yPath width height [maxError [maxCellSize]]</code>
+	 */
+	public static void main( final String... args ) throws IOException
+	{
+		final int width = Integer.parseInt( args[ 3 ] );
+		final int height = Integer.parseInt( args[ 4 ] );
+		final double maxError = args.length > 5 ? Double.parseDouble( args[ 5 ] ) : 0.1;
+		final int maxCellSize = args.length > 6 ? Integer.parseInt( args[ 6 ] ) : 256;
+
+		new ImageJ();
+		final FloatProcessor source = new Opener().openImage( args[ 0 ] ).getProcessor().convertToFloatProcessor();
+
+		long t = System.currentTimeMillis();
+		final PositionFieldMesh mesh = fit(
+				MappedDoubleRandomAccessibleInterval.open( args[ 1 ], width, height ),
+				MappedDoubleRandomAccessibleInterval.open( args[ 2 ], width, height ),
+				maxError,
+				maxCellSize );
+		IJ.log( "Fitted " + mesh.numTriangles() + " triangles in " + ( System.currentTimeMillis() - t ) + "ms." );
+
+		t = System.currentTimeMillis();
+		final FloatProcessor target = mesh.render( source );
+		IJ.log( "Rendered in " + ( System.currentTimeMillis() - t ) + "ms." );
+
+		new ImagePlus( "mesh rendering", target ).show();
+	}
+}
@@ -44,11 +44,12 @@ import net.imglib2.realtransform.RealTransform;
 import net.imglib2.type.numeric.RealType;
 
 /**
- * A {@link RealTransform} by continuous coordinate lookup.
+ * A {@link RealTransform} by continuous coordinate lookup.  Blocks of points
+ * can be transformed with {@link #apply(double[][], double[][], int)}.
  *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
-public class PositionFieldTransform< T extends RealType< T > > implements RealTransform
+public class PositionFieldTransform< T extends RealType< T > > implements BatchRealTransform
 {
 	/* one for each dimension */
 	private final RealRandomAccess< T >[] positionAccesses;
@@ -109,6 +110,22 @@ public class PositionFieldTransform< T extends RealType< T > > implements RealTr
 			target.setPosition( positionAccesses[ d ].get().getRealDouble(), d );
 	}
 
+	@Override
+	public void apply( final double[][] source, final double[][] target, final int n )
+	{
+		for ( int d = 0; d < positionAccesses.length; d++ )
+		{
+			final RealRandomAccess< T > access = positionAccesses[ d ];
+			final double[] t = target[ d ];
+			for ( int i = 0; i < n; ++i )
+			{
+				for ( int k = 0; k < source.length; ++k )
+					access.setPosition( source[ k ][ i ], k );
+				t[ i ] = access.get().getRealDouble();
+			}
+		}
+	}
+
 	@Override
 	public RealTransform copy()
 	{
@@ -0,0 +1,84 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Replaces saturated pixels, i.e. pixels at the lower or upper end of the
+ * intensity range, with uniformly distributed noise in that range.  Both ends
+ * are masked in a single in-place pass that runs in parallel over blocks of
+ * pixels, each block with its own {@link SplittableRandom}.
+ *
+ * This is equivalent to consecutively applying a
+ * {@link ini.trakem2.imaging.filters.ValueToNoise} filter for the lower and
+ * the upper value but does not copy the image.
+ */
+public class SaturationToNoise
+{
+	final static private int blockSize = 1 << 16;
+
+	private SaturationToNoise() {}
+
+	/**
+	 * Replace all pixels that are equal to min or max by uniform noise in
+	 * [min, max).
+	 *
+	 * @param pixels
+	 * @param min
+	 * @param max
+	 */
+	public static void process( final float[] pixels, final float min, final float max )
+	{
+		final double scale = max - min;
+		final int numBlocks = ( pixels.length + blockSize - 1 ) / blockSize;
+
+		/* split sequentially, SplittableRandom is not thread safe */
+		final SplittableRandom rnd = new SplittableRandom();
+		final SplittableRandom[] rnds = new SplittableRandom[ numBlocks ];
+		for ( int b = 0; b < numBlocks; ++b )
+			rnds[ b ] = rnd.split();
+
+		IntStream.range( 0, numBlocks ).parallel().forEach(
+				b -> {
+					final SplittableRandom blockRnd = rnds[ b ];
+					final int to = Math.min( pixels.length, ( b + 1 ) * blockSize );
+					for ( int i = b * blockSize; i < to; ++i )
+					{
+						final float v = pixels[ i ];
+						if ( v == min || v == max )
+							pixels[ i ] = ( float )( blockRnd.nextDouble() * scale + min );
+					}
+				} );
+	}
+
+	/**
+	 * Replace all 8-bit saturated pixels, i.e. 0 and 255, by uniform noise in
+	 * [0, 255).
+	 *
+	 * @param ip will be modified
+	 * @return ip
+	 */
+	public static FloatProcessor process( final FloatProcessor ip )
+	{
+		process( ( float[] )ip.getPixels(), 0, 255 );
+		return ip;
+	}
+}
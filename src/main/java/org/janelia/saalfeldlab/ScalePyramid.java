@@ -0,0 +1,68 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import ij.process.FloatProcessor;
+import mpicbg.ij.util.Filter;
+import mpicbg.util.Util;
+
+/**
+ * A Gaussian pyramid of {@link FloatProcessor FloatProcessors}.  Level
+ * <em>l</em> is the input downsampled by <em>scaleFactor<sup>l</sup></em>,
+ * i.e. level 0 has full resolution.  All levels are generated from the input
+ * in parallel at construction time and then reused.
+ */
+public class ScalePyramid
+{
+	private final double[] scales;
+	private final FloatProcessor[] levels;
+
+	public ScalePyramid(
+			final FloatProcessor source,
+			final double scaleFactor,
+			final int numLevels )
+	{
+		scales = new double[ numLevels ];
+		Arrays.setAll( scales, l -> 1.0 / Util.pow( scaleFactor, l ) );
+
+		levels = new FloatProcessor[ numLevels ];
+		IntStream.range( 0, numLevels ).parallel().forEach(
+				l -> levels[ l ] = Filter.createDownsampled( source, scales[ l ], 0.5f, 0.5f ) );
+	}
+
+	public int numLevels()
+	{
+		return levels.length;
+	}
+
+	/**
+	 * @param level
+	 * @return the scale of level relative to the input
+	 */
+	public double scale( final int level )
+	{
+		return scales[ level ];
+	}
+
+	public FloatProcessor get( final int level )
+	{
+		return levels[ level ];
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * Reads rectangular regions of the first image of an uncompressed grayscale
+ * TIFF without loading the whole image.  The pixel offset is taken from the
+ * {@link FileInfo} that ImageJ's {@link TiffDecoder} extracts from the
+ * header, and rows are fetched with positional reads, so a single reader
+ * can be shared by several threads.  8-bit, unsigned 16-bit and 32-bit
+ * float images are supported.
+ */
+public class TiffRegionReader implements Closeable
+{
+	private final FileChannel channel;
+	private final long offset;
+	private final int width;
+	private final int height;
+	private final int fileType;
+	private final int bytesPerPixel;
+	private final ByteOrder byteOrder;
+
+	private TiffRegionReader( final FileChannel channel, final FileInfo fi )
+	{
+		this.channel = channel;
+		offset = fi.getOffset();
+		width = fi.width;
+		height = fi.height;
+		fileType = fi.fileType;
+		bytesPerPixel = fi.getBytesPerPixel();
+		byteOrder = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	/**
+	 * @param path
+	 * @return
+	 * @throws IOException if the file is not an uncompressed, contiguous,
+	 *     supported grayscale TIFF
+	 */
+	public static TiffRegionReader open( final String path ) throws IOException
+	{
+		final File file = new File( path );
+		final FileInfo[] info = new TiffDecoder( file.getAbsoluteFile().getParent() + File.separator, file.getName() ).getTiffInfo();
+		if ( info == null || info.length == 0 )
+			throw new IOException( path + " is not a TIFF." );
+
+		final FileInfo fi = info[ 0 ];
+		if ( fi.compression > FileInfo.COMPRESSION_NONE )
+			throw new IOException( path + " is compressed." );
+		if ( !( fi.fileType == FileInfo.GRAY8 || fi.fileType == FileInfo.GRAY16_UNSIGNED || fi.fileType == FileInfo.GRAY32_FLOAT ) )
+			throw new IOException( path + " has unsupported pixel type " + fi.fileType + "." );
+		if ( fi.stripOffsets != null && fi.stripOffsets.length > 1 )
+		{
+			final long stripSize = ( long )fi.rowsPerStrip * fi.width * fi.getBytesPerPixel();
+			for ( int i = 1; i < fi.stripOffsets.length; ++i )
+				if ( fi.stripOffsets[ i ] != fi.stripOffsets[ 0 ] + i * stripSize )
+					throw new IOException( path + " has non-contiguous strips." );
+		}
+
+		return new TiffRegionReader( FileChannel.open( file.toPath(), StandardOpenOption.READ ), fi );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Read a region that must be inside the image.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @return w&times;h pixels in row order
+	 * @throws IOException
+	 */
+	public float[] read( final int x0, final int y0, final int w, final int h ) throws IOException
+	{
+		final float[] pixels = new float[ w * h ];
+		final ByteBuffer buffer = ByteBuffer.allocate( w * bytesPerPixel ).order( byteOrder );
+		for ( int y = 0, i = 0; y < h; ++y )
+		{
+			buffer.clear();
+			long position = offset + ( ( long )( y0 + y ) * width + x0 ) * bytesPerPixel;
+			while ( buffer.hasRemaining() )
+			{
+				final int n = channel.read( buffer, position );
+				if ( n < 0 )
+					throw new IOException( "Unexpected end of file." );
+				position += n;
+			}
+			buffer.flip();
+
+			switch ( fileType )
+			{
+			case FileInfo.GRAY8:
+				for ( int x = 0; x < w; ++x, ++i )
+					pixels[ i ] = buffer.get() & 0xff;
+				break;
+			case FileInfo.GRAY16_UNSIGNED:
+				for ( int x = 0; x < w; ++x, ++i )
+					pixels[ i ] = buffer.getShort() & 0xffff;
+				break;
+			default:
+				for ( int x = 0; x < w; ++x, ++i )
+					pixels[ i ] = buffer.getFloat();
+			}
+		}
+		return pixels;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}